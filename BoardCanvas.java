@@ -0,0 +1,192 @@
+package pb.app;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+/**
+ * An unbounded view of a board that can be panned by dragging and zoomed with
+ * the mouse wheel. It is drawn from a {@link TileCache}, whose tiles are
+ * rendered from the board's snapshots through a {@link PathGrid}, so a tile
+ * only touches the paths overlapping it and only the tiles a change overlaps
+ * are rendered again.
+ *
+ * The view only shows the board; strokes are drawn on the draw area.
+ */
+public class BoardCanvas extends JComponent {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Most bytes of tile rasters kept, set by the system property
+     * pb.tileMemory.
+     */
+    public static final long tileMemory = Long.getLong("pb.tileMemory", 64L * 1024 * 1024);
+
+    /**
+     * Times a second the board is checked for changes.
+     */
+    private static final int checksPerSecond = 30;
+
+    private static final double minZoom = 1.0 / 64;
+    private static final double maxZoom = 8;
+
+    private final Supplier<VersionedPaths.Snapshot> board;
+    private final PathGrid grid = new PathGrid();
+    private final TileCache tiles;
+    private final ScheduledExecutorService checker;
+    private volatile VersionedPaths.Snapshot shown = null;
+
+    /**
+     * Canvas coordinates of the top left corner of the view, and screen
+     * pixels per canvas unit. Only used on the GUI thread.
+     */
+    private double originX = 0;
+    private double originY = 0;
+    private double zoom = 1;
+    private Point dragFrom = null;
+
+    /**
+     * @param board the current snapshot of the board, or null if it is gone
+     */
+    public BoardCanvas(Supplier<VersionedPaths.Snapshot> board) {
+        this.board = board;
+        tiles = new TileCache(TileCache.defaultTileSize, tileMemory, this::renderTile,
+                () -> SwingUtilities.invokeLater(this::repaint));
+        setBackground(Color.white);
+        setOpaque(true);
+        // enables tool tips, their text depends on the mouse position
+        setToolTipText("");
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragFrom = e.getPoint();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (dragFrom != null) {
+                    originX -= (e.getX() - dragFrom.x) / zoom;
+                    originY -= (e.getY() - dragFrom.y) / zoom;
+                    dragFrom = e.getPoint();
+                    repaint();
+                }
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                dragFrom = null;
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                double next = Math.max(minZoom, Math.min(maxZoom, zoom * Math.pow(1.25, -e.getPreciseWheelRotation())));
+                // keep the point under the mouse where it is
+                Point2D at = toCanvas(e.getPoint());
+                originX = at.getX() - e.getX() / next;
+                originY = at.getY() - e.getY() / next;
+                zoom = next;
+                repaint();
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+        checker = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "board-canvas");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = TimeUnit.SECONDS.toMillis(1) / checksPerSecond;
+        checker.scheduleWithFixedDelay(this::checkBoard, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop following the board.
+     */
+    public void shutdown() {
+        checker.shutdownNow();
+        tiles.shutdown();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        Rectangle2D viewport = new Rectangle2D.Double(originX, originY, getWidth() / zoom, getHeight() / zoom);
+        tiles.paint((Graphics2D) g, viewport, zoom);
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        VersionedPaths.Snapshot snapshot = shown;
+        if (snapshot == null) {
+            return null;
+        }
+        Point2D at = toCanvas(e.getPoint());
+        int position = grid.hitTest(snapshot, new Point((int) Math.floor(at.getX()), (int) Math.floor(at.getY())),
+                (int) Math.ceil(3 / zoom));
+        return position < 0 ? null
+                : "path " + (position + 1) + " of " + snapshot.size() + ", version " + snapshot.getVersion();
+    }
+
+    private Point2D toCanvas(Point screen) {
+        return new Point2D.Double(originX + screen.x / zoom, originY + screen.y / zoom);
+    }
+
+    /**
+     * Follow the board's changes: drop the tiles they overlap and repaint.
+     */
+    private void checkBoard() {
+        VersionedPaths.Snapshot snapshot = board.get();
+        if (snapshot == null || snapshot == shown) {
+            return;
+        }
+        Rectangle changed = grid.update(snapshot);
+        shown = snapshot;
+        if (changed != null) {
+            tiles.invalidate(changed);
+            SwingUtilities.invokeLater(this::repaint);
+        }
+    }
+
+    /**
+     * Draw the paths overlapping a tile.
+     */
+    private void renderTile(Graphics2D g, Rectangle area) {
+        VersionedPaths.Snapshot snapshot = shown;
+        if (snapshot == null) {
+            return;
+        }
+        g.setStroke(new BasicStroke(2, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        for (WhiteboardPath path : grid.query(snapshot, area)) {
+            ArrayList<Point> points = StrokeSimplifier.pointsOf(path);
+            Color color = StrokeSimplifier.colorOf(path);
+            if (points == null || color == null || points.isEmpty()) {
+                continue;
+            }
+            g.setColor(color);
+            Point from = points.get(0);
+            for (Point to : points) {
+                g.drawLine(from.x, from.y, to.x, to.y);
+                from = to;
+            }
+        }
+    }
+}
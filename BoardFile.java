@@ -0,0 +1,445 @@
+package pb.app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary file format for saving a board, read back through a memory mapping
+ * so that opening a file does not depend on the number of paths in it: paths
+ * are only decoded when they are asked for.
+ *
+ * Layout, big endian:
+ * <ul>
+ * <li>header: magic "PBWB", format version, board version, path count,
+ * and the offsets of the sections below</li>
+ * <li>dictionary: the board name and the distinct path prefixes (in
+ * practice the colour), separator patterns and suffixes</li>
+ * <li>path index: one fixed size record per path, so any path can be found
+ * without reading the ones before it</li>
+ * <li>coordinate column: the numbers of all paths, each path delta and
+ * zigzag varint encoded on its own</li>
+ * <li>raw block: the text of paths that do not fit the columnar form</li>
+ * </ul>
+ *
+ * A path's text is split into a prefix, its numbers, the separators between
+ * the numbers, which must repeat with a period of at most two (e.g. "x,y,"
+ * or "x,y;"), and a suffix. The split is only used if joining the parts
+ * gives back exactly the same text; any other path is stored as it is.
+ *
+ * Every offset and length read from the file is checked against the mapping
+ * before it is used, the header and dictionary when the file is opened and
+ * a path's index record when the path is decoded, so a damaged or truncated
+ * file fails with an {@link IOException} rather than reading out of bounds.
+ */
+public class BoardFile implements Closeable {
+
+    private static final int magic = 0x50425742;
+
+    /**
+     * Version of the file format written.
+     */
+    public static final short formatVersion = 1;
+
+    private static final int headerSize = 4 + 2 + 2 + 8 + 4 + 8 * 4;
+    private static final int recordSize = 4 * 5 + 8;
+    private static final int columnar = 0;
+    private static final int raw = 1;
+
+    /**
+     * Longest run of digits stored as a number, longer ones would overflow.
+     */
+    private static final int maxDigits = 18;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final String boardName;
+    private final long boardVersion;
+    private final int pathCount;
+    private final String[] dictionary;
+    private final long indexOffset;
+    private final long coordinatesOffset;
+    private final long rawOffset;
+
+    private BoardFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("board file larger than 2GB");
+        }
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (map.limit() < headerSize || map.getInt(0) != magic) {
+            throw new IOException("not a board file");
+        }
+        short version = map.getShort(4);
+        if (version != formatVersion) {
+            throw new IOException("unsupported board file version " + version);
+        }
+        boardVersion = map.getLong(8);
+        pathCount = map.getInt(16);
+        long dictionaryOffset = map.getLong(20);
+        indexOffset = map.getLong(28);
+        coordinatesOffset = map.getLong(36);
+        rawOffset = map.getLong(44);
+        if (pathCount < 0 || dictionaryOffset < headerSize || indexOffset < dictionaryOffset
+                || coordinatesOffset < indexOffset || rawOffset < coordinatesOffset || rawOffset > map.limit()
+                || coordinatesOffset - indexOffset != (long) pathCount * recordSize) {
+            throw new IOException("corrupt board file: sections out of bounds");
+        }
+
+        // the dictionary is small, it is read straight away
+        int pos = (int) dictionaryOffset;
+        int end = (int) indexOffset;
+        if (end - pos < 4) {
+            throw new IOException("corrupt board file: no dictionary");
+        }
+        int count = map.getInt(pos);
+        pos += 4;
+        if (count < 1 || count > (end - pos) / 4) {
+            throw new IOException("corrupt board file: dictionary of " + count + " entries");
+        }
+        dictionary = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = end - pos < 4 ? -1 : map.getInt(pos);
+            if (length < 0 || length > end - pos - 4) {
+                throw new IOException("corrupt board file: dictionary entry " + i + " out of bounds");
+            }
+            dictionary[i] = decodeString(pos + 4, length);
+            pos += 4 + length;
+        }
+        boardName = dictionary[0];
+    }
+
+    /**
+     * Map a board file. Only the header and dictionary are read.
+     *
+     * @param file
+     * @return the open file, to be closed when no longer needed
+     * @throws IOException if the file can't be read or is not a board file
+     */
+    public static BoardFile open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new BoardFile(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public String getBoardName() {
+        return boardName;
+    }
+
+    public long getBoardVersion() {
+        return boardVersion;
+    }
+
+    public int size() {
+        return pathCount;
+    }
+
+    /**
+     * @param i
+     * @return the text of the i-th path, decoded from the mapping
+     * @throws UncheckedIOException if the path's record is damaged
+     */
+    public String pathString(int i) {
+        try {
+            return readPath(i);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String readPath(int i) throws IOException {
+        if (i < 0 || i >= pathCount) {
+            throw new IndexOutOfBoundsException("path " + i + " of " + pathCount);
+        }
+        int record = (int) (indexOffset + (long) i * recordSize);
+        int kind = map.getInt(record);
+        int count = map.getInt(record + 16);
+        long offset = map.getLong(record + 20);
+        if (kind == raw) {
+            if (count < 0 || offset < 0 || offset > map.limit() - rawOffset - count) {
+                throw new IOException("corrupt board file: path " + i + " out of bounds");
+            }
+            return decodeString((int) (rawOffset + offset), count);
+        }
+        // every number takes at least one byte of the coordinate column
+        if (kind != columnar || count < 0 || offset < 0 || offset > rawOffset - coordinatesOffset - count) {
+            throw new IOException("corrupt board file: path " + i + " out of bounds");
+        }
+        String prefix = dictionaryEntry(map.getInt(record + 4), i);
+        String pattern = dictionaryEntry(map.getInt(record + 8), i);
+        String suffix = dictionaryEntry(map.getInt(record + 12), i);
+        int split = pattern.indexOf('\u0000');
+        if (split < 0) {
+            throw new IOException("corrupt board file: path " + i + " has no separator pattern");
+        }
+        String[] separators = {pattern.substring(0, split), pattern.substring(split + 1)};
+
+        StringBuilder sb = new StringBuilder(prefix.length() + suffix.length() + count * 5);
+        sb.append(prefix);
+        int[] pos = {(int) (coordinatesOffset + offset)};
+        long previous = 0;
+        for (int n = 0; n < count; n++) {
+            long zigzag = readVarint(map, pos, (int) rawOffset);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            if (n > 0) {
+                sb.append(separators[(n - 1) % 2]);
+            }
+            sb.append(previous);
+        }
+        return sb.append(suffix).toString();
+    }
+
+    /**
+     * @return the paths of the board in drawing order, each decoded when it
+     * is first asked for
+     */
+    public List<WhiteboardPath> paths() {
+        return new AbstractList<WhiteboardPath>() {
+            @Override
+            public WhiteboardPath get(int index) {
+                return new WhiteboardPath(pathString(index));
+            }
+
+            @Override
+            public int size() {
+                return pathCount;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private String dictionaryEntry(int id, int path) throws IOException {
+        if (id < 0 || id >= dictionary.length) {
+            throw new IOException("corrupt board file: path " + path + " refers to entry " + id);
+        }
+        return dictionary[id];
+    }
+
+    private String decodeString(int pos, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = map.duplicate();
+        view.position(pos);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a board to a file, replacing the file atomically.
+     *
+     * @param file
+     * @param board
+     * @throws IOException
+     */
+    public static void write(Path file, Whiteboard board) throws IOException {
+        String data = board.toString();
+        int versionStart = data.indexOf('%') + 1;
+        int pathsStart = data.indexOf('%', versionStart) + 1;
+        long version = WhiteboardApp.getBoardVersion(data);
+        List<String> paths = new ArrayList<>();
+        if (pathsStart > 0) {
+            for (String path : data.substring(pathsStart).split("%")) {
+                if (!path.isEmpty()) {
+                    paths.add(path);
+                }
+            }
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, encode(board.getName(), version, paths));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param boardName
+     * @param version
+     * @param paths the text of each path, in drawing order
+     * @return the contents of a board file
+     */
+    static byte[] encode(String boardName, long version, List<String> paths) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        intern(boardName, ids, dictionary);
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream(paths.size() * recordSize);
+        DataOutputStream indexOut = new DataOutputStream(index);
+        ByteArrayOutputStream coordinates = new ByteArrayOutputStream();
+        ByteArrayOutputStream rawBlock = new ByteArrayOutputStream();
+        List<Long> numbers = new ArrayList<>();
+        List<String> separators = new ArrayList<>();
+
+        for (String path : paths) {
+            String[] parts = split(path, numbers, separators);
+            if (parts == null) {
+                byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+                indexOut.writeInt(raw);
+                indexOut.writeInt(0);
+                indexOut.writeInt(0);
+                indexOut.writeInt(0);
+                indexOut.writeInt(bytes.length);
+                indexOut.writeLong(rawBlock.size());
+                rawBlock.write(bytes);
+                continue;
+            }
+            indexOut.writeInt(columnar);
+            indexOut.writeInt(intern(parts[0], ids, dictionary));
+            indexOut.writeInt(intern(parts[1], ids, dictionary));
+            indexOut.writeInt(intern(parts[2], ids, dictionary));
+            indexOut.writeInt(numbers.size());
+            indexOut.writeLong(coordinates.size());
+            long previous = 0;
+            for (long number : numbers) {
+                long delta = number - previous;
+                writeVarint(coordinates, (delta << 1) ^ (delta >> 63));
+                previous = number;
+            }
+        }
+
+        ByteArrayOutputStream dictionaryBlock = new ByteArrayOutputStream();
+        DataOutputStream dictionaryOut = new DataOutputStream(dictionaryBlock);
+        dictionaryOut.writeInt(dictionary.size());
+        for (String entry : dictionary) {
+            byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+            dictionaryOut.writeInt(bytes.length);
+            dictionaryOut.write(bytes);
+        }
+
+        long dictionaryOffset = headerSize;
+        long indexOffset = dictionaryOffset + dictionaryBlock.size();
+        long coordinatesOffset = indexOffset + index.size();
+        long rawOffset = coordinatesOffset + coordinates.size();
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream((int) rawOffset + rawBlock.size());
+        DataOutputStream out = new DataOutputStream(file);
+        out.writeInt(magic);
+        out.writeShort(formatVersion);
+        out.writeShort(0);
+        out.writeLong(version);
+        out.writeInt(paths.size());
+        out.writeLong(dictionaryOffset);
+        out.writeLong(indexOffset);
+        out.writeLong(coordinatesOffset);
+        out.writeLong(rawOffset);
+        dictionaryBlock.writeTo(out);
+        index.writeTo(out);
+        coordinates.writeTo(out);
+        rawBlock.writeTo(out);
+        out.flush();
+        return file.toByteArray();
+    }
+
+    /**
+     * Split the text of a path into prefix, numbers and separators.
+     *
+     * @param path
+     * @param numbers filled with the numbers of the path
+     * @param separators scratch space
+     * @return prefix, separator pattern ("first\0second") and suffix, or
+     * null if the path does not have the columnar form
+     */
+    private static String[] split(String path, List<Long> numbers, List<String> separators) {
+        numbers.clear();
+        separators.clear();
+        int i = 0;
+        int length = path.length();
+        while (i < length && !isDigit(path.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return null;
+        }
+        String prefix = path.substring(0, i);
+        String suffix = "";
+        while (i < length) {
+            int start = i;
+            while (i < length && isDigit(path.charAt(i))) {
+                i++;
+            }
+            int digits = i - start;
+            if (digits > maxDigits || (digits > 1 && path.charAt(start) == '0')) {
+                // would not come back as the same text
+                return null;
+            }
+            numbers.add(Long.parseLong(path.substring(start, i)));
+            start = i;
+            while (i < length && !isDigit(path.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                suffix = path.substring(start);
+            } else {
+                separators.add(path.substring(start, i));
+            }
+        }
+        String first = separators.isEmpty() ? "" : separators.get(0);
+        String second = separators.size() < 2 ? "" : separators.get(1);
+        for (int n = 0; n < separators.size(); n++) {
+            if (!separators.get(n).equals(n % 2 == 0 ? first : second)) {
+                return null;
+            }
+        }
+        if (first.indexOf('\u0000') >= 0) {
+            return null;
+        }
+        return new String[]{prefix, first + '\u0000' + second, suffix};
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int intern(String value, Map<String, Integer> ids, List<String> dictionary) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = dictionary.size();
+            ids.put(value, id);
+            dictionary.add(value);
+        }
+        return id;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer, int[] pos, int end) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= end || shift > 63) {
+                throw new IOException("corrupt board file: number out of bounds");
+            }
+            byte b = buffer.get(pos[0]++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
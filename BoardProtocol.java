@@ -0,0 +1,257 @@
+package pb.app;
+
+import java.util.List;
+
+/**
+ * The rules that keep the copies of a shared board identical. The peer
+ * hosting a board holds the master copy and puts every change in order;
+ * subscribers only apply what the host sends them, in that order.
+ * <ul>
+ * <li>Every update the host sends carries the version of its board just
+ * before the change. A subscriber applies an update only when its copy is at
+ * exactly that version. An update for an older version is already included in
+ * its copy, e.g. because it arrived after a snapshot taken later, and is
+ * ignored. An update for a newer version means updates were missed, and the
+ * subscriber fetches the whole board again, ignoring updates until it
+ * arrives.</li>
+ * <li>A subscriber does not change its copy itself. It sends the change to the
+ * host as a request, and applies it when the host's update for it comes
+ * back, which goes to every subscriber including the one that asked.</li>
+ * <li>The host appends the paths of a request at whatever version its board
+ * is at, so a stroke is never lost because another one got in first. Undo and
+ * clear refer to the board the requester saw, so they are only applied if the
+ * host's board is still at the version in the request.</li>
+ * <li>Restoring an older version replaces all paths in one change, so it is
+ * only applied if the host's board is still at the version in the request,
+ * like undo and clear.</li>
+ * <li>Each path raises the version by one, also within a batch; undo, clear
+ * and restore raise it by one.</li>
+ * </ul>
+ * The handlers of {@link WhiteboardApp} and of the relay apply these rules
+ * through here, and so does {@link ProtocolSimulation}, which checks them.
+ */
+public final class BoardProtocol {
+
+    /**
+     * A copy of a board that the rules can be applied to.
+     */
+    public interface Replica {
+
+        long getVersion();
+
+        /**
+         * Append paths in order if the copy is still at the given version,
+         * raising the version by one per path.
+         */
+        boolean addPaths(List<WhiteboardPath> paths, long versionBeforeUpdate);
+
+        boolean undo(long versionBeforeUpdate);
+
+        boolean clear(long versionBeforeUpdate);
+
+        /**
+         * Replace all paths if the copy is still at the given version,
+         * raising the version by one.
+         */
+        boolean replace(List<WhiteboardPath> paths, long versionBeforeUpdate);
+
+        /**
+         * Replace the whole copy.
+         */
+        void reset(long version, List<WhiteboardPath> paths);
+    }
+
+    /**
+     * What became of an update from the host.
+     */
+    public enum Outcome {
+        /**
+         * The update was applied to the copy.
+         */
+        APPLIED,
+        /**
+         * The copy already includes the update, or will when the board
+         * being fetched arrives.
+         */
+        STALE,
+        /**
+         * Updates were missed, the board has to be fetched again.
+         */
+        GAP
+    }
+
+    private BoardProtocol() {
+    }
+
+    /**
+     * @param requestEvent a change requested of the host
+     * @return the event the host sends to its subscribers for it
+     */
+    public static String updateFor(String requestEvent) {
+        switch (requestEvent) {
+        case WhiteboardApp.boardPathAccepted:
+            return WhiteboardApp.boardPathUpdate;
+        case WhiteboardApp.boardPathBatch:
+            return WhiteboardApp.boardPathBatch;
+        case WhiteboardApp.boardUndoAccepted:
+            return WhiteboardApp.boardUndoUpdate;
+        case WhiteboardApp.boardClearAccepted:
+            return WhiteboardApp.boardClearUpdate;
+        case WhiteboardApp.boardRestoreAccepted:
+            return WhiteboardApp.boardRestoreUpdate;
+        default:
+            throw new IllegalArgumentException("not a change request: " + requestEvent);
+        }
+    }
+
+    /**
+     * Apply a change to the host's copy of a board, either requested by a
+     * subscriber or made on the host itself.
+     *
+     * @param replica the host's copy
+     * @param requestEvent {@link WhiteboardApp#boardPathAccepted},
+     * {@link WhiteboardApp#boardPathBatch},
+     * {@link WhiteboardApp#boardUndoAccepted},
+     * {@link WhiteboardApp#boardClearAccepted} or
+     * {@link WhiteboardApp#boardRestoreAccepted}
+     * @param data host:port:boardid%version%PATHS, the version being the one
+     * the requester saw
+     * @return the argument of the update to send to every subscriber, with
+     * the version before the change, or null if the change was refused
+     */
+    public static String host(Replica replica, String requestEvent, String data) {
+        String boardName = WhiteboardApp.getBoardName(data);
+        switch (requestEvent) {
+        case WhiteboardApp.boardPathAccepted:
+        case WhiteboardApp.boardPathBatch: {
+            List<WhiteboardPath> paths = WhiteboardApp.parsePaths(data);
+            if (paths.isEmpty()) {
+                return null;
+            }
+            while (true) {
+                // only fails if another change got in between, then append after it
+                long version = replica.getVersion();
+                if (replica.addPaths(paths, version)) {
+                    return boardName + "%" + version + "%" + WhiteboardApp.getBoardPaths(data);
+                }
+            }
+        }
+        case WhiteboardApp.boardUndoAccepted: {
+            long version = WhiteboardApp.getBoardVersion(data);
+            return replica.undo(version) ? boardName + "%" + version + "%" : null;
+        }
+        case WhiteboardApp.boardClearAccepted: {
+            long version = WhiteboardApp.getBoardVersion(data);
+            return replica.clear(version) ? boardName + "%" + version + "%" : null;
+        }
+        case WhiteboardApp.boardRestoreAccepted: {
+            long version = WhiteboardApp.getBoardVersion(data);
+            return replica.replace(WhiteboardApp.parsePaths(data), version) ? data : null;
+        }
+        default:
+            throw new IllegalArgumentException("not a change request: " + requestEvent);
+        }
+    }
+
+    /**
+     * Apply an update from the host to a subscriber's copy of a board.
+     *
+     * @param replica the subscriber's copy
+     * @param updateEvent {@link WhiteboardApp#boardPathUpdate},
+     * {@link WhiteboardApp#boardPathBatch},
+     * {@link WhiteboardApp#boardUndoUpdate},
+     * {@link WhiteboardApp#boardClearUpdate} or
+     * {@link WhiteboardApp#boardRestoreUpdate}
+     * @param data host:port:boardid%version%PATHS, the version being the
+     * host's before the change
+     * @return what became of the update
+     */
+    public static Outcome apply(Replica replica, String updateEvent, String data) {
+        long version = WhiteboardApp.getBoardVersion(data);
+        long current = replica.getVersion();
+        if (version < current) {
+            return Outcome.STALE;
+        }
+        if (version > current) {
+            return Outcome.GAP;
+        }
+        boolean applied;
+        switch (updateEvent) {
+        case WhiteboardApp.boardPathUpdate:
+        case WhiteboardApp.boardPathBatch:
+            applied = replica.addPaths(WhiteboardApp.parsePaths(data), version);
+            break;
+        case WhiteboardApp.boardUndoUpdate:
+            applied = replica.undo(version);
+            break;
+        case WhiteboardApp.boardClearUpdate:
+            applied = replica.clear(version);
+            break;
+        case WhiteboardApp.boardRestoreUpdate:
+            applied = replica.replace(WhiteboardApp.parsePaths(data), version);
+            break;
+        default:
+            throw new IllegalArgumentException("not an update: " + updateEvent);
+        }
+        // at the host's version but the change does not fit, so the copy differs from the host's
+        return applied ? Outcome.APPLIED : Outcome.GAP;
+    }
+
+    /**
+     * A subscriber's state for one board besides its copy: whether it has
+     * asked for the board, and whether the board is being fetched again after
+     * a gap. Not needed by the host.
+     */
+    public static final class Subscription {
+
+        private boolean requested = false;
+        private boolean fetching = false;
+        private long newestIgnored = -1;
+
+        /**
+         * The whole board has been asked for.
+         */
+        public synchronized void requested() {
+            requested = true;
+        }
+
+        /**
+         * @return true if the board has been asked for; board data for a
+         * board never asked for is ignored
+         */
+        public synchronized boolean isRequested() {
+            return requested;
+        }
+
+        /**
+         * Apply an update from the host, see {@link BoardProtocol#apply}.
+         * While the board is being fetched, updates are ignored.
+         *
+         * @return {@link Outcome#GAP} only for the first update of a gap, the
+         * caller then fetches the board
+         */
+        public synchronized Outcome update(Replica replica, String updateEvent, String data) {
+            if (fetching) {
+                newestIgnored = Math.max(newestIgnored, WhiteboardApp.getBoardVersion(data));
+                return Outcome.STALE;
+            }
+            Outcome outcome = apply(replica, updateEvent, data);
+            fetching = outcome == Outcome.GAP;
+            return outcome;
+        }
+
+        /**
+         * The whole board has been loaded into the copy.
+         *
+         * @param version the version loaded
+         * @return false if updates from after that version were ignored while
+         * it was on its way, then the caller fetches the board again
+         */
+        public synchronized boolean loaded(long version) {
+            boolean complete = !fetching || newestIgnored < version;
+            fetching = !complete;
+            newestIgnored = -1;
+            return complete;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package pb;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.app.BoardProtocol;
+import pb.app.StrokeTracer;
+import pb.app.SubscriberChannel;
+import pb.app.VersionedPaths;
+import pb.app.Whiteboard;
+import pb.app.WhiteboardApp;
+import pb.app.WhiteboardReplica;
+import pb.managers.ClientManager;
+import pb.managers.IOThread;
+import pb.managers.PeerManager;
+import pb.managers.endpoint.Endpoint;
+import pb.utils.EventCallback;
+import pb.utils.KeyedExecutor;
+import pb.utils.RateLimitedLogger;
+import pb.utils.Utils;
+
+/**
+ * Headless relay that serves shared boards to read-only viewers on behalf of
+ * the peers hosting them. The relay subscribes to a board once, keeps a copy
+ * of it up to date, and passes the snapshots and updates on to any number of
+ * viewers, so the host sees a single subscriber per relay however many
+ * viewers there are.
+ *
+ * The relay registers with the whiteboard server with
+ * {@link WhiteboardServer#relayAvailable}, and proves itself by signing the
+ * server's {@link WhiteboardServer#relayChallenge} with a secret shared with
+ * the server. The server names a relay for
+ * each board it announces with {@link WhiteboardServer#relayingBoard}.
+ * Viewers speak the same protocol to the relay as to a hosting peer, except
+ * that any attempt to modify a board is answered with
+ * {@link WhiteboardApp#boardError}.
+ */
+public class BoardRelay {
+
+    private static Logger log = Logger.getLogger(BoardRelay.class.getName());
+
+    private static RateLimitedLogger events = new RateLimitedLogger(log);
+
+    /**
+     * Default port viewers connect to.
+     */
+    public static final int defaultPort = 8200;
+
+    private final String advertised;
+    private final String secret;
+    private final PeerManager peerManager;
+
+    /**
+     * Copy of every board the relay is subscribed to, read by viewers
+     * without waiting for updates, see {@link WhiteboardReplica}.
+     */
+    private final Map<String, WhiteboardReplica> boards = new ConcurrentHashMap<>();
+
+    /**
+     * Endpoint ids of the viewers of each board.
+     */
+    private final Map<String, Set<String>> viewers = new ConcurrentHashMap<>();
+
+    /**
+     * Subscriber side state of each board, see
+     * {@link BoardProtocol.Subscription}.
+     */
+    private final Map<String, BoardProtocol.Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Connected viewers, by endpoint id.
+     */
+    private final Map<String, SubscriberChannel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Connection to each hosting peer, by "host:port".
+     */
+    private final Map<String, Endpoint> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * Boards asked for before the connection to their host was up, by the
+     * host's "host:port".
+     */
+    private final Map<String, Set<String>> waiting = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the board event handlers off the IO threads, in order for each
+     * board.
+     */
+    private final KeyedExecutor handlers = new KeyedExecutor(
+            Integer.getInteger("pb.handlerThreads", KeyedExecutor.defaultThreads));
+
+    /**
+     * @param advertised "host:port" viewers can reach this relay at
+     * @param secret relay secret of the whiteboard server
+     * @param peerManager listens for viewers and connects to hosts
+     */
+    public BoardRelay(String advertised, String secret, PeerManager peerManager) {
+        this.advertised = advertised;
+        this.secret = secret;
+        this.peerManager = peerManager;
+    }
+
+    /**
+     * Register with the whiteboard server and start serving viewers.
+     */
+    public void start(String serverHost, int serverPort) throws InterruptedException, UnknownHostException {
+        peerManager.on(PeerManager.peerStarted, (args) -> {
+            onViewer((Endpoint) args[0]);
+        }).on(PeerManager.peerStopped, (args) -> {
+            Endpoint endpoint = (Endpoint) args[0];
+            channels.remove(endpoint.getOtherEndpointId());
+            for (Set<String> ids : viewers.values()) {
+                ids.remove(endpoint.getOtherEndpointId());
+            }
+            events.info("viewerStopped", () -> endpoint.getOtherEndpointId());
+        }).on(PeerManager.peerError, (args) -> {
+            Endpoint endpoint = (Endpoint) args[0];
+            events.warning("viewerError", () -> endpoint.getOtherEndpointId());
+        }).on(IOThread.ioThread, (args) -> {
+            log.info("using Internet address: " + args[0]);
+        });
+
+        ClientManager server = peerManager.connect(serverPort, serverHost);
+        server.on(PeerManager.peerStarted, (args) -> {
+            Endpoint endpoint = (Endpoint) args[0];
+            endpoint.on(WhiteboardServer.relayChallenge, (challenge) -> {
+                endpoint.emit(WhiteboardServer.relayProof,
+                        ClusterNode.sign(secret, WhiteboardServer.relayProof + "%" + advertised + "%" + challenge[0]));
+                log.info("registered with whiteboard server as " + advertised);
+            });
+            endpoint.emit(WhiteboardServer.relayAvailable, advertised);
+        }).on(PeerManager.peerStopped, (args) -> {
+            log.warning("disconnected from whiteboard server");
+        });
+        server.start();
+        peerManager.start();
+    }
+
+    public void join() {
+        peerManager.joinWithClientManagers();
+    }
+
+    private void onViewer(Endpoint endpoint) {
+        String viewerId = endpoint.getOtherEndpointId();
+        SubscriberChannel channel = new SubscriberChannel(endpoint, this::snapshot);
+        channels.put(viewerId, channel);
+        events.info("viewerStarted", () -> viewerId);
+
+        endpoint.on(WhiteboardApp.boardCredit, (args) -> {
+            long granted = Long.parseLong((String) args[0]);
+            // owed snapshots are built while granting, keep them off the IO thread
+            handlers.execute(viewerId, () -> channel.grant(granted));
+        }).on(WhiteboardApp.getBoardData, onBoard((args) -> {
+            String boardName = WhiteboardApp.getBoardName((String) args[0]);
+            viewers.computeIfAbsent(boardName, (k) -> ConcurrentHashMap.newKeySet()).add(viewerId);
+            WhiteboardReplica board = boards.get(boardName);
+            if (board != null) {
+                channel.sendBoard(boardName, board.toString());
+            } else {
+                subscribe(boardName);
+            }
+        }));
+        for (String eventName : new String[]{WhiteboardApp.boardPathAccepted,
+            WhiteboardApp.boardUndoAccepted, WhiteboardApp.boardClearAccepted,
+            WhiteboardApp.boardPathBatch, WhiteboardApp.boardRestoreAccepted, WhiteboardApp.boardDeleted}) {
+            endpoint.on(eventName, (args) -> {
+                String boardName = WhiteboardApp.getBoardName((String) args[0]);
+                endpoint.emit(WhiteboardApp.boardError, boardName + " is read-only through relay " + advertised);
+            });
+        }
+    }
+
+    /**
+     * @return a callback running the handler on the handler queue of the
+     * board named in its argument
+     */
+    private EventCallback onBoard(EventCallback callback) {
+        return handlers.dispatch((args) -> WhiteboardApp.getBoardName(StrokeTracer.strip((String) args[0])), callback);
+    }
+
+    /**
+     * @return the board data for a viewer that has fallen behind, or null if
+     * the board is gone
+     */
+    private String snapshot(String boardName) {
+        WhiteboardReplica board = boards.get(boardName);
+        return board == null ? null : board.toString();
+    }
+
+    /**
+     * Ask the host of a board for its data, connecting to the host first if
+     * needed.
+     */
+    private void subscribe(String boardName) {
+        String host = WhiteboardApp.getIP(boardName) + ":" + WhiteboardApp.getPort(boardName);
+        subscription(boardName).requested();
+        Endpoint endpoint = hosts.get(host);
+        if (endpoint != null) {
+            endpoint.emit(WhiteboardApp.getBoardData, boardName);
+            return;
+        }
+        Set<String> pending = ConcurrentHashMap.newKeySet();
+        Set<String> existing = waiting.putIfAbsent(host, pending);
+        if (existing != null) {
+            // a connection is already being made
+            existing.add(boardName);
+            return;
+        }
+        pending.add(boardName);
+        try {
+            ClientManager clientManager = peerManager.connect(WhiteboardApp.getPort(boardName),
+                    WhiteboardApp.getIP(boardName));
+            clientManager.on(PeerManager.peerStarted, (args) -> {
+                onHost(host, (Endpoint) args[0]);
+            }).on(PeerManager.peerStopped, (args) -> {
+                onHostGone(host);
+            }).on(PeerManager.peerError, (args) -> {
+                onHostGone(host);
+            });
+            clientManager.start();
+        } catch (InterruptedException | UnknownHostException e) {
+            log.warning("could not connect to board host " + host + ": " + e.getMessage());
+            waiting.remove(host);
+        }
+    }
+
+    private void onHost(String host, Endpoint endpoint) {
+        SubscriberChannel.CreditGranter credits = new SubscriberChannel.CreditGranter(endpoint);
+        credits.start();
+        hosts.put(host, endpoint);
+        log.info("relaying boards of " + host);
+
+        endpoint.on(WhiteboardApp.boardData, credits.counting(onBoard((args) -> {
+            String data = (String) args[0];
+            String boardName = WhiteboardApp.getBoardName(data);
+            BoardProtocol.Subscription subscription = subscriptions.get(boardName);
+            if (subscription == null || !subscription.isRequested()) {
+                return;
+            }
+            Whiteboard board = new Whiteboard(boardName, true);
+            board.whiteboardFromString(boardName, WhiteboardApp.getBoardData(data));
+            board.setShared(true);
+            boards.put(boardName, new WhiteboardReplica(board, new VersionedPaths()));
+            forward(WhiteboardApp.boardData, boardName, data);
+            if (!subscription.loaded(board.getVersion())) {
+                resync(endpoint, boardName);
+            }
+        })));
+        for (String eventName : new String[]{WhiteboardApp.boardPathUpdate, WhiteboardApp.boardPathBatch,
+            WhiteboardApp.boardUndoUpdate, WhiteboardApp.boardClearUpdate, WhiteboardApp.boardRestoreUpdate}) {
+            endpoint.on(eventName, credits.counting(onBoard((args) -> {
+                update(endpoint, eventName, (String) args[0]);
+            })));
+        }
+        endpoint.on(WhiteboardApp.boardDeleted, credits.counting(onBoard((args) -> {
+            String data = (String) args[0];
+            String boardName = WhiteboardApp.getBoardName(data);
+            boards.remove(boardName);
+            subscriptions.remove(boardName);
+            forward(WhiteboardApp.boardDeleted, boardName, data);
+            viewers.remove(boardName);
+        })));
+
+        Set<String> pending = waiting.remove(host);
+        if (pending != null) {
+            for (String boardName : pending) {
+                endpoint.emit(WhiteboardApp.getBoardData, boardName);
+            }
+        }
+    }
+
+    /**
+     * Apply an update from a host to the relay's copy of the board, see
+     * {@link BoardProtocol.Subscription#update}, and pass it on to the
+     * viewers, whose copies are the relay's.
+     */
+    private void update(Endpoint host, String eventName, String tracedData) {
+        String data = StrokeTracer.strip(tracedData);
+        String boardName = WhiteboardApp.getBoardName(data);
+        WhiteboardReplica board = boards.get(boardName);
+        if (board == null) {
+            return;
+        }
+        switch (subscription(boardName).update(board, eventName, data)) {
+        case APPLIED:
+            forward(eventName, boardName, tracedData);
+            break;
+        case GAP:
+            resync(host, boardName);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private BoardProtocol.Subscription subscription(String boardName) {
+        return subscriptions.computeIfAbsent(boardName, (name) -> new BoardProtocol.Subscription());
+    }
+
+    /**
+     * The relay's copy of a board no longer matches the host, fetch it again.
+     * Viewers are brought up to date when the board data arrives.
+     */
+    private void resync(Endpoint host, String boardName) {
+        events.warning("resync", () -> boardName);
+        host.emit(WhiteboardApp.getBoardData, boardName);
+    }
+
+    private void onHostGone(String host) {
+        hosts.remove(host);
+        waiting.remove(host);
+        // viewers hear about the host going from the whiteboard server
+        boards.keySet().removeIf((boardName) -> boardName.startsWith(host + ":"));
+        subscriptions.keySet().removeIf((boardName) -> boardName.startsWith(host + ":"));
+        viewers.keySet().removeIf((boardName) -> boardName.startsWith(host + ":"));
+        log.info("stopped relaying boards of " + host);
+    }
+
+    /**
+     * Pass an update on to every viewer of the board.
+     */
+    private void forward(String eventName, String boardName, String arg) {
+        Set<String> ids = viewers.get(boardName);
+        if (ids == null) {
+            return;
+        }
+        for (String id : ids) {
+            SubscriberChannel channel = channels.get(id);
+            if (channel == null) {
+                continue;
+            }
+            if (eventName.equals(WhiteboardApp.boardData)) {
+                // the viewers of a board have asked for it
+                channel.sendBoard(boardName, arg);
+            } else {
+                channel.send(eventName, boardName, arg);
+            }
+        }
+    }
+
+    private static void help(Options options) {
+        String header = "PB Whiteboard Relay for Unimelb COMP90015\n\n";
+        String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("pb.BoardRelay", header, options, footer, true);
+        System.exit(-1);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // set a nice log format
+        System.setProperty("java.util.logging.SimpleFormatter.format",
+                "[%1$tl:%1$tM:%1$tS:%1$tL] [%4$s] %2$s: %5$s%n");
+
+        // parse command line options
+        Options options = new Options();
+        options.addOption("port", true, "port viewers connect to, an integer");
+        options.addOption("host", true, "host name viewers can reach this relay at");
+        options.addOption("whiteboardServer", true, "whiteboard server host");
+        options.addOption("whiteboardServerPort", true, "whiteboard server port, an integer");
+        options.addOption("relaySecret", true, "relay secret of the whiteboard server");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e1) {
+            help(options);
+        }
+
+        int port = defaultPort;
+        int serverPort = Utils.indexServerPort;
+        try {
+            if (cmd.hasOption("port")) {
+                port = Integer.parseInt(cmd.getOptionValue("port"));
+            }
+            if (cmd.hasOption("whiteboardServerPort")) {
+                serverPort = Integer.parseInt(cmd.getOptionValue("whiteboardServerPort"));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("-port and -whiteboardServerPort require a port number");
+            help(options);
+        }
+        String host = cmd.hasOption("host") ? cmd.getOptionValue("host") : "localhost";
+        String serverHost = cmd.hasOption("whiteboardServer") ? cmd.getOptionValue("whiteboardServer") : "localhost";
+
+        if (!cmd.hasOption("relaySecret")) {
+            System.out.println("-relaySecret is required");
+            help(options);
+        }
+        BoardRelay relay = new BoardRelay(host + ":" + port, cmd.getOptionValue("relaySecret"), new PeerManager(port));
+        log.info("Board Relay starting up");
+        relay.start(serverHost, serverPort);
+        // nothing more for the main thread to do
+        relay.join();
+        Utils.getInstance().cleanUp();
+    }
+}
@@ -0,0 +1,147 @@
+package pb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Persistent copy of a server's catalog of shared boards, so that a restarted
+ * server still knows which boards were shared. Changes are appended to a
+ * journal, one line per change: "+host:port:boardid" when a board is shared
+ * and "-host:port:boardid" when it no longer is. Once the journal has grown
+ * to {@link #compactAfter} lines, the current set of boards is written to a
+ * snapshot, one board per line, and the journal starts again empty.
+ *
+ * Every journal line and snapshot is forced to the disk before the change is
+ * considered made, so a crash loses at most the change being written.
+ *
+ * Loading reads the snapshot and replays the journal over it. Replaying a
+ * journal that was already included in the snapshot, e.g. after a crash in
+ * the middle of compacting, gives the same result.
+ */
+public class CatalogStore {
+
+    private static Logger log = Logger.getLogger(CatalogStore.class.getName());
+
+    /**
+     * Number of journal lines after which the journal is compacted into the
+     * snapshot.
+     */
+    public static final int compactAfter = 1000;
+
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final Set<String> boards = new LinkedHashSet<>();
+    private FileChannel journal = null;
+    private int journalLines = 0;
+
+    public CatalogStore(Path snapshotFile, Path journalFile) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Read the persisted catalog and open the journal for appending.
+     *
+     * @return the boards that were shared when the catalog was last written
+     * @throws IOException
+     */
+    public synchronized Set<String> load() throws IOException {
+        boards.clear();
+        for (String line : readLines(snapshotFile)) {
+            if (!line.isEmpty()) {
+                boards.add(line);
+            }
+        }
+        journalLines = 0;
+        for (String line : readLines(journalFile)) {
+            if (line.startsWith("+")) {
+                boards.add(line.substring(1));
+            } else if (line.startsWith("-")) {
+                boards.remove(line.substring(1));
+            }
+            journalLines++;
+        }
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        return Collections.unmodifiableSet(new LinkedHashSet<>(boards));
+    }
+
+    public synchronized void shared(String boardName) {
+        if (boards.add(boardName)) {
+            append("+" + boardName);
+        }
+    }
+
+    public synchronized void unshared(String boardName) {
+        if (boards.remove(boardName)) {
+            append("-" + boardName);
+        }
+    }
+
+    public synchronized void close() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.warning("could not close catalog journal: " + e.getMessage());
+            }
+            journal = null;
+        }
+    }
+
+    private void append(String line) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                journal.write(bytes);
+            }
+            journal.force(false);
+            if (++journalLines >= compactAfter) {
+                compact();
+            }
+        } catch (IOException e) {
+            log.warning("could not write catalog journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the current boards to the snapshot and empty the journal. The
+     * snapshot is replaced atomically, so there is always a complete one.
+     */
+    private void compact() throws IOException {
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        Files.write(tmp, boards, StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // only once the snapshot holds every change
+        journal.truncate(0);
+        journal.force(true);
+        journalLines = 0;
+        log.info("catalog compacted, " + boards.size() + " boards");
+    }
+
+    private static List<String> readLines(Path file) throws IOException {
+        try {
+            return Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        }
+    }
+}
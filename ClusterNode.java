@@ -0,0 +1,387 @@
+package pb;
+
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import pb.managers.ClientManager;
+import pb.managers.PeerManager;
+import pb.managers.endpoint.Endpoint;
+import pb.utils.RateLimitedLogger;
+
+/**
+ * One node of a cluster of whiteboard servers. Membership is static: every
+ * node is started with the same list of "host:port" members. The catalog of
+ * shared boards is sharded over the members with a consistent hash ring on
+ * the board name, and each node keeps a client connection to every other
+ * member to forward events to it.
+ *
+ * A single node started without any other members owns every board, so all
+ * routing stays local. While a member is unreachable its part of the ring
+ * falls to the next live member, and is handed back when it returns.
+ *
+ * Members prove they belong to the cluster with a secret shared by all of
+ * them: a member names itself with a hello, the node it links to answers
+ * with a fresh challenge, and the link is only accepted if the member signs
+ * its name and the challenge with the secret. A recorded proof is of no use
+ * on another link, whose challenge differs.
+ */
+public class ClusterNode {
+
+    private static Logger log = Logger.getLogger(ClusterNode.class.getName());
+
+    private static RateLimitedLogger events = new RateLimitedLogger(log);
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Emitted by a node on each of its links to say which member it is.
+     * Argument has format "host:port".
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String clusterHello = "CLUSTER_HELLO";
+
+    /**
+     * Emitted by the node receiving a {@link #clusterHello} in reply, for the
+     * member to prove itself. Argument is a random nonce used only once.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String clusterChallenge = "CLUSTER_CHALLENGE";
+
+    /**
+     * Emitted by a node in answer to a {@link #clusterChallenge}. Argument is
+     * the signature of "CLUSTER_PROOF%host:port%nonce" with the cluster
+     * secret, see {@link #sign(String, String)}.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String clusterProof = "CLUSTER_PROOF";
+
+    /**
+     * Forwarded to the node owning a board when one of a node's clients
+     * shares it. Argument has format "sessionid%host:port:boardid".
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String forwardShareBoard = "CLUSTER_SHARE_BOARD";
+
+    /**
+     * Forwarded to the node owning a board when one of a node's clients
+     * unshares it. Argument has format "sessionid%host:port:boardid".
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String forwardUnshareBoard = "CLUSTER_UNSHARE_BOARD";
+
+    /**
+     * Forwarded to the node owning a board when the client sharing it has
+     * disconnected. Argument has format "sessionid%host:port:boardid".
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String forwardPeerGone = "CLUSTER_PEER_GONE";
+
+    /**
+     * Forwarded to the node owning a board whose sharing client has gone,
+     * when one of a node's clients holds a copy of it. Argument has format
+     * "sessionid%host:port:boardid%version%clienthost:clientport".
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String forwardHoldingBoard = "CLUSTER_HOLDING_BOARD";
+
+    /**
+     * Emitted by the owning node to all other nodes to have them pass an
+     * event on to their own clients. Argument has format
+     * "event%sessionid%host:port:boardid", where sessionid is the client that
+     * must not receive the event.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String announce = "CLUSTER_ANNOUNCE";
+
+    /**
+     * Emitted by a node to all other nodes when a client connects, asking for
+     * the boards in their shards. Argument has format "host:port%sessionid".
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String listBoards = "CLUSTER_LIST_BOARDS";
+
+    /**
+     * Reply to {@link #listBoards}, emitted once per board. Argument has
+     * format "sessionid%host:port:boardid".
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String boardListEntry = "CLUSTER_BOARD_LIST_ENTRY";
+
+    /**
+     * Time to wait before reconnecting to a member, in milliseconds.
+     */
+    public static final long reconnectDelay = 2000;
+
+    private final String self;
+    private final List<String> members;
+    private final HashRing ring;
+    private final PeerManager linkManager;
+    private final Map<String, Endpoint> links = new ConcurrentHashMap<>();
+    /**
+     * The connection currently opened to each member, only its own stop or
+     * error reconnects, and only once.
+     */
+    private final Map<String, ClientManager> connections = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final String secret;
+    private volatile Runnable onMembershipChange = () -> {
+    };
+
+    /**
+     * @param self "host:port" of this node, as it appears in members
+     * @param members "host:port" of every node in the cluster, including this
+     * one
+     * @param linkManager used to open the connections to the other members
+     * @param secret shared by every member, may only be null when there are
+     * no other members
+     */
+    public ClusterNode(String self, List<String> members, PeerManager linkManager, String secret) {
+        checkMember(self);
+        for (String member : members) {
+            checkMember(member);
+        }
+        this.self = self;
+        this.secret = secret;
+        this.members = new ArrayList<>(members);
+        if (!this.members.contains(self)) {
+            this.members.add(self);
+        }
+        this.ring = new HashRing(this.members);
+        this.linkManager = linkManager;
+        timer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "cluster-links");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (secret == null && this.members.size() > 1) {
+            throw new IllegalArgumentException("a cluster of more than one member needs a secret");
+        }
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * @param boardName
+     * @return "host:port" of the node whose shard holds the board when every
+     * member is up
+     */
+    public String homeOf(String boardName) {
+        return ring.nodeFor(boardName);
+    }
+
+    /**
+     * @param boardName
+     * @return "host:port" of the node whose shard holds the board now, the
+     * first member from its home on that is linked to this node
+     */
+    public String ownerOf(String boardName) {
+        return ring.nodeFor(boardName, (member) -> member.equals(self) || links.containsKey(member));
+    }
+
+    /**
+     * @param listener run whenever a link to a member is made or lost, and
+     * so ownership may have moved
+     */
+    public void onMembershipChange(Runnable listener) {
+        onMembershipChange = listener;
+    }
+
+    /**
+     * @param hello argument of a {@link #clusterHello}
+     * @return true if the hello names another listed member, which is then
+     * sent a {@link #clusterChallenge}
+     */
+    public boolean isOtherMember(String hello) {
+        return secret != null && !hello.equals(self) && members.contains(hello);
+    }
+
+    /**
+     * @param member the member named by the {@link #clusterHello}
+     * @param nonce the {@link #clusterChallenge} sent to it
+     * @param proof argument of the {@link #clusterProof} in answer
+     * @return true if the member signed its name and the challenge with the
+     * cluster secret
+     */
+    public boolean verifyProof(String member, String nonce, String proof) {
+        if (!isOtherMember(member)) {
+            return false;
+        }
+        byte[] expected = sign(clusterProof + "%" + member + "%" + nonce).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, proof.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return a random nonce for a challenge, in hex
+     */
+    public static String nonce() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param member
+     * @throws IllegalArgumentException if the member is not "host:port" with
+     * a valid port number
+     */
+    private static void checkMember(String member) {
+        int split = member.lastIndexOf(':');
+        int port = -1;
+        try {
+            port = split <= 0 ? -1 : Integer.parseInt(member.substring(split + 1));
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("cluster members must be host:port, not " + member);
+        }
+    }
+
+    private String sign(String text) {
+        return sign(secret, text);
+    }
+
+    /**
+     * @param secret
+     * @param text
+     * @return the HMAC-SHA256 of the text with the secret, in base 64
+     */
+    public static String sign(String secret, String text) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Open a link to every other member. Links that drop are reopened.
+     */
+    public void start() {
+        for (String member : members) {
+            if (!member.equals(self)) {
+                connect(member);
+            }
+        }
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Emit an event to one member.
+     *
+     * @return false if there is currently no link to the member
+     */
+    public boolean sendTo(String member, String eventName, String arg) {
+        Endpoint link = links.get(member);
+        if (link == null) {
+            events.warning("noLink", () -> member + ", not sending " + eventName);
+            return false;
+        }
+        link.emit(eventName, arg);
+        return true;
+    }
+
+    /**
+     * Emit an event to every other member.
+     */
+    public void broadcast(String eventName, String arg) {
+        for (Endpoint link : links.values()) {
+            link.emit(eventName, arg);
+        }
+    }
+
+    private void connect(String member) {
+        String host = member.substring(0, member.lastIndexOf(':'));
+        int port = Integer.parseInt(member.substring(member.lastIndexOf(':') + 1));
+        try {
+            ClientManager clientManager = linkManager.connect(port, host);
+            connections.put(member, clientManager);
+            clientManager.on(PeerManager.peerStarted, (args) -> {
+                Endpoint endpoint = (Endpoint) args[0];
+                endpoint.on(clusterChallenge, (challenge) -> {
+                    endpoint.emit(clusterProof, sign(clusterProof + "%" + self + "%" + challenge[0]));
+                });
+                endpoint.emit(clusterHello, self);
+                links.put(member, endpoint);
+                log.info("linked to cluster member " + member);
+                onMembershipChange.run();
+            }).on(PeerManager.peerStopped, (args) -> {
+                log.warning("lost link to cluster member " + member);
+                lost(member, clientManager);
+            }).on(PeerManager.peerError, (args) -> {
+                lost(member, clientManager);
+            });
+            clientManager.start();
+        } catch (InterruptedException | UnknownHostException e) {
+            log.warning("could not connect to cluster member " + member + ": " + e.getMessage());
+            reconnect(member);
+        }
+    }
+
+    /**
+     * A connection stops after an error too, reconnect only for the first of
+     * the two and only if it is still the member's current connection.
+     */
+    private void lost(String member, ClientManager clientManager) {
+        if (!connections.remove(member, clientManager)) {
+            return;
+        }
+        if (links.remove(member) != null) {
+            onMembershipChange.run();
+        }
+        reconnect(member);
+    }
+
+    private void reconnect(String member) {
+        if (!timer.isShutdown()) {
+            timer.schedule(() -> connect(member), reconnectDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package pb;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Consistent hash ring mapping keys, e.g. board names, to nodes. Each node is
+ * placed on the ring many times so that keys spread evenly, and adding or
+ * removing a node only moves the keys of its neighbours.
+ */
+public class HashRing {
+
+    /**
+     * Number of points each node has on the ring.
+     */
+    public static final int virtualNodes = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public HashRing(Collection<String> nodes) {
+        for (String node : nodes) {
+            add(node);
+        }
+    }
+
+    public synchronized void add(String node) {
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    public synchronized void remove(String node) {
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.remove(hash(node + "#" + i));
+        }
+    }
+
+    /**
+     * @param key
+     * @return the node responsible for the key, or null if the ring is empty
+     */
+    public synchronized String nodeFor(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * @param key
+     * @param usable e.g. whether a node is up
+     * @return the first usable node at or after the key's place on the ring,
+     * i.e. the node responsible for the key while the nodes before it are
+     * not usable, or null if no node is usable
+     */
+    public synchronized String nodeFor(String key, Predicate<String> usable) {
+        long h = hash(key);
+        for (String node : ring.tailMap(h).values()) {
+            if (usable.test(node)) {
+                return node;
+            }
+        }
+        for (String node : ring.headMap(h).values()) {
+            if (usable.test(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package pb;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.utils.TimerWheel;
+
+/**
+ * Heartbeats and failure detection for endpoint sessions. Both ends of a
+ * watched session emit {@link #heartbeat} at a fixed interval, and each end
+ * runs a phi accrual failure detector on the heartbeats it receives: phi
+ * grows with the time since the last heartbeat, relative to the mean and
+ * spread of the intervals seen so far, and the session is declared failed
+ * once phi goes over the threshold. This notices dead peers and half-open
+ * connections in seconds, where TCP can take minutes.
+ *
+ * A session is only ever declared failed after at least one heartbeat has
+ * been received on it, so the other end not sending heartbeats at all, e.g.
+ * because it runs an older version, does not count as a failure.
+ *
+ * All watched sessions are driven from the shared {@link TimerWheel}.
+ */
+public class HeartbeatMonitor {
+
+    private static Logger log = Logger.getLogger(HeartbeatMonitor.class.getName());
+
+    /**
+     * Emitted at a fixed interval on a watched session. Argument is ignored.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String heartbeat = "HEARTBEAT";
+
+    /**
+     * Default interval between heartbeats, in milliseconds.
+     */
+    public static final long defaultInterval = 1000;
+
+    /**
+     * Default phi above which a session is declared failed. A phi of 8 means
+     * the chance of the heartbeat still arriving is about 1 in 10^8.
+     */
+    public static final double defaultThreshold = 8.0;
+
+    /**
+     * Number of heartbeat intervals the detector remembers.
+     */
+    public static final int windowSize = 100;
+
+    private final class Watch {
+
+        final Endpoint endpoint;
+        final Runnable onFailure;
+        final ArrayDeque<Long> intervals = new ArrayDeque<>();
+        long lastHeard = -1;
+        double sum = 0;
+        double sumOfSquares = 0;
+        volatile boolean stopped = false;
+
+        Watch(Endpoint endpoint, Runnable onFailure) {
+            this.endpoint = endpoint;
+            this.onFailure = onFailure;
+        }
+
+        synchronized void heard(long now) {
+            if (lastHeard >= 0) {
+                long interval = now - lastHeard;
+                intervals.add(interval);
+                sum += interval;
+                sumOfSquares += (double) interval * interval;
+                if (intervals.size() > windowSize) {
+                    long oldest = intervals.poll();
+                    sum -= oldest;
+                    sumOfSquares -= (double) oldest * oldest;
+                }
+            }
+            lastHeard = now;
+        }
+
+        synchronized double phi(long now) {
+            if (lastHeard < 0) {
+                return 0;
+            }
+            double mean = intervals.isEmpty() ? interval : sum / intervals.size();
+            double variance = intervals.isEmpty() ? 0 : sumOfSquares / intervals.size() - mean * mean;
+            double stdDev = Math.max(Math.sqrt(Math.max(variance, 0)), interval / 4.0);
+            return HeartbeatMonitor.phi(now - lastHeard, mean + acceptablePause, stdDev);
+        }
+    }
+
+    private final long interval;
+    private final double threshold;
+    private final long acceptablePause;
+    private final TimerWheel wheel;
+    private final Map<Endpoint, Watch> watches = new ConcurrentHashMap<>();
+
+    /**
+     * @param interval between heartbeats, in milliseconds
+     * @param threshold phi above which a session is declared failed
+     * @param acceptablePause extra time a heartbeat may be late without
+     * raising phi much, e.g. for garbage collection, in milliseconds
+     */
+    public HeartbeatMonitor(long interval, double threshold, long acceptablePause) {
+        this.interval = interval;
+        this.threshold = threshold;
+        this.acceptablePause = acceptablePause;
+        this.wheel = TimerWheel.getShared();
+    }
+
+    public HeartbeatMonitor() {
+        this(defaultInterval, defaultThreshold, defaultInterval);
+    }
+
+    /**
+     * Start sending heartbeats on a session and watching for the other end's.
+     *
+     * @param endpoint
+     * @param onFailure called once, on the timer thread, if the session is
+     * declared failed
+     */
+    public void watch(Endpoint endpoint, Runnable onFailure) {
+        Watch watch = new Watch(endpoint, onFailure);
+        watches.put(endpoint, watch);
+        endpoint.on(heartbeat, (args) -> {
+            watch.heard(System.currentTimeMillis());
+        });
+        wheel.schedule(() -> tick(watch), interval);
+    }
+
+    /**
+     * Stop watching a session, e.g. because it has stopped.
+     */
+    public void unwatch(Endpoint endpoint) {
+        Watch watch = watches.remove(endpoint);
+        if (watch != null) {
+            watch.stopped = true;
+        }
+    }
+
+    /**
+     * @return the current phi of a session, 0 if it is not watched or no
+     * heartbeat has been received yet
+     */
+    public double getPhi(Endpoint endpoint) {
+        Watch watch = watches.get(endpoint);
+        return watch == null ? 0 : watch.phi(System.currentTimeMillis());
+    }
+
+    private void tick(Watch watch) {
+        if (watch.stopped) {
+            return;
+        }
+        double phi = watch.phi(System.currentTimeMillis());
+        if (phi > threshold) {
+            watch.stopped = true;
+            watches.remove(watch.endpoint, watch);
+            log.warning("session " + watch.endpoint.getOtherEndpointId()
+                    + " failed, no heartbeat for " + (System.currentTimeMillis() - watch.lastHeard) + "ms");
+            watch.onFailure.run();
+            return;
+        }
+        watch.endpoint.emit(heartbeat, "");
+        wheel.schedule(() -> tick(watch), interval);
+    }
+
+    /**
+     * Phi of a heartbeat that is elapsed milliseconds late, using the
+     * logistic approximation of the normal distribution.
+     */
+    static double phi(long elapsed, double mean, double stdDev) {
+        double y = (elapsed - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        } else {
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+}
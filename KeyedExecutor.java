@@ -0,0 +1,191 @@
+package pb.utils;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs event handlers on a bounded pool of worker threads instead of the IO
+ * thread that read the event, so a slow handler does not hold up reading from
+ * its socket. Tasks are queued by key, e.g. board name: tasks with the same
+ * key run one at a time in the order they were submitted, while tasks with
+ * different keys run in parallel.
+ *
+ * Each key queues at most {@link #maxQueued} tasks. Submitting to a full
+ * queue blocks until a task of that key has run, so an IO thread stops
+ * reading from a socket whose handlers have fallen behind instead of queueing
+ * without bound. Tasks submitted from the worker threads themselves are never
+ * blocked, as that could deadlock the pool.
+ *
+ * With 0 threads every task runs straight away on the calling thread, which
+ * is how handlers ran before.
+ */
+public class KeyedExecutor {
+
+    private static Logger log = Logger.getLogger(KeyedExecutor.class.getName());
+
+    /**
+     * Default number of worker threads, one per core.
+     */
+    public static final int defaultThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of tasks a key runs before giving its worker to other keys.
+     */
+    public static final int batchSize = 32;
+
+    /**
+     * Most tasks queued for one key before submitters block, set by the
+     * system property pb.handlerQueue.
+     */
+    public static final int maxQueued = Math.max(1, Integer.getInteger("pb.handlerQueue", 1024));
+
+    /**
+     * Set on the worker threads of every executor.
+     */
+    private static final ThreadLocal<Boolean> worker = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * Tasks of one key, run by at most one worker at a time.
+     */
+    private final class SerialQueue implements Runnable {
+
+        final String key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        boolean running = false;
+        boolean retired = false;
+
+        SerialQueue(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return false if the queue was retired and a new one is needed
+         */
+        boolean add(Runnable task) {
+            synchronized (this) {
+                boolean interrupted = false;
+                while (!retired && tasks.size() >= maxQueued && !worker.get()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (retired) {
+                    return false;
+                }
+                tasks.add(task);
+                queued.incrementAndGet();
+                if (running) {
+                    return true;
+                }
+                running = true;
+            }
+            pool.execute(this);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < batchSize; i++) {
+                Runnable task;
+                synchronized (this) {
+                    if (tasks.size() >= maxQueued) {
+                        notifyAll();
+                    }
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        retired = true;
+                        queues.remove(key, this);
+                        return;
+                    }
+                }
+                queued.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "handler for " + key + " failed", e);
+                }
+            }
+            // let other keys have a turn
+            pool.execute(this);
+        }
+    }
+
+    private final ExecutorService pool;
+    private final Map<String, SerialQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param threads number of worker threads, 0 to run tasks on the calling
+     * thread
+     */
+    public KeyedExecutor(int threads) {
+        if (threads <= 0) {
+            pool = null;
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), (runnable) -> {
+                    Thread thread = new Thread(() -> {
+                        worker.set(true);
+                        runnable.run();
+                    }, "handler-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Run a task after the tasks already submitted with the same key.
+     *
+     * @param key
+     * @param task
+     */
+    public void execute(String key, Runnable task) {
+        if (pool == null) {
+            task.run();
+            return;
+        }
+        while (!queues.computeIfAbsent(key, SerialQueue::new).add(task)) {
+            // the queue went idle and was retired, a new one takes its place
+        }
+    }
+
+    /**
+     * @param key gives the key of an event from its arguments
+     * @param callback
+     * @return an event callback that runs the given callback through this
+     * executor
+     */
+    public EventCallback dispatch(Function<Object[], String> key, EventCallback callback) {
+        return (args) -> execute(key.apply(args), () -> callback.callback(args));
+    }
+
+    /**
+     * @return number of tasks submitted and not yet started, over all keys
+     */
+    public int queued() {
+        return queued.get();
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package pb.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, e.g. latencies in nanoseconds,
+ * in the style of an HDR histogram: values below 64 are counted exactly and
+ * every power of two above that is split into 32 buckets, so any recorded
+ * value is reported within about 3% of its true value while the whole range
+ * of a long fits in under 2000 counters.
+ */
+public class LatencyHistogram {
+
+    private static final int subBucketBits = 6;
+    private static final int linear = 1 << subBucketBits;
+    private static final int half = linear / 2;
+    private static final int bucketCount = linear + (63 - subBucketBits) * half;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long previous;
+        while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+            // retry until max is at least value
+        }
+    }
+
+    /**
+     * Record the time elapsed since a start time taken from
+     * {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return an upper bound of the value at the percentile, 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < bucketCount; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @param scale divide values by this before printing, e.g. 1000 to print
+     * nanoseconds as microseconds
+     * @return e.g. "n=120 mean=35 p50=31 p99=88 max=102"
+     */
+    public String summary(long scale) {
+        return String.format("n=%d mean=%.0f p50=%d p90=%d p99=%d max=%d", getCount(), getMean() / scale,
+                getValueAtPercentile(50) / scale, getValueAtPercentile(90) / scale,
+                getValueAtPercentile(99) / scale, getMax() / scale);
+    }
+
+    private static int indexOf(long value) {
+        if (value < linear) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - (subBucketBits - 1);
+        int sub = (int) (value >>> shift);
+        return linear + (msb - subBucketBits) * half + (sub - half);
+    }
+
+    private static long upperBound(int index) {
+        if (index < linear) {
+            return index;
+        }
+        int k = index - linear;
+        int msb = k / half + subBucketBits;
+        int sub = half + k % half;
+        int shift = msb - (subBucketBits - 1);
+        return ((long) (sub + 1) << shift) - 1;
+    }
+}
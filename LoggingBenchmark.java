@@ -0,0 +1,173 @@
+package pb.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Measures the CPU time that logging costs a board handler under load. Each
+ * event stands for a board data event: the serialized board is split into
+ * its paths, as the handler does, on this thread, and then logged in one of
+ * three ways:
+ * <ul>
+ * <li>none: not logged, the cost of the handling itself</li>
+ * <li>eager: {@code log.info("onBoardData: " + boardData)}, as the handlers
+ * used to</li>
+ * <li>lazy: through a {@link RateLimitedLogger}, as the handlers do now</li>
+ * </ul>
+ * with the logger's level either dropping the record or writing it to a
+ * handler that discards it, so only the cost of building the record counts.
+ * The share of the thread's CPU time spent on logging is reported against
+ * handling without logging. The modes take turns over several rounds and
+ * the fastest round of each counts, which keeps JIT and GC noise out.
+ */
+public class LoggingBenchmark {
+
+    private static Logger log = Logger.getLogger(LoggingBenchmark.class.getName());
+
+    private static final int none = 0;
+    private static final int eager = 1;
+    private static final int lazy = 2;
+    private static final String[] modes = {"none", "eager", "lazy"};
+
+    private final Logger target = Logger.getLogger(LoggingBenchmark.class.getName() + ".target");
+    private final RateLimitedLogger events = new RateLimitedLogger(target);
+    private final String boardData;
+    private long sink = 0;
+
+    /**
+     * @param paths number of paths of the board
+     */
+    public LoggingBenchmark(int paths) {
+        StringBuilder sb = new StringBuilder("127.0.0.1:8000:1%").append(paths);
+        for (int i = 0; i < paths; i++) {
+            sb.append("%black");
+            for (int p = 0; p < 10; p++) {
+                sb.append(':').append(i % 600).append(',').append(p * 7 % 600);
+            }
+        }
+        boardData = sb.toString();
+        target.setUseParentHandlers(false);
+        target.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                sink += record.getMessage().length();
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    public int boardLength() {
+        return boardData.length();
+    }
+
+    /**
+     * @param mode none, eager or lazy
+     * @param level level of the logger, records are at INFO
+     * @param events number of events
+     * @return CPU time of this thread in nanoseconds per event
+     */
+    public double run(int mode, Level level, int events) {
+        target.setLevel(level);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long start = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < events; i++) {
+            onBoardData(mode, boardData);
+        }
+        return (double) (threads.getCurrentThreadCpuTime() - start) / events;
+    }
+
+    private void onBoardData(int mode, String data) {
+        if (mode == eager) {
+            target.info("onBoardData: " + data);
+        } else if (mode == lazy) {
+            events.info("onBoardData", () -> data);
+        }
+        int start = data.indexOf('%', data.indexOf('%') + 1) + 1;
+        while (start > 0) {
+            int end = data.indexOf('%', start);
+            String path = data.substring(start, end < 0 ? data.length() : end);
+            sink += path.length();
+            start = end + 1;
+        }
+    }
+
+    private static void help(Options options) {
+        String header = "PB Whiteboard logging benchmark for Unimelb COMP90015\n\n";
+        String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("pb.utils.LoggingBenchmark", header, options, footer, true);
+        System.exit(-1);
+    }
+
+    public static void main(String[] args) {
+        // set a nice log format
+        System.setProperty("java.util.logging.SimpleFormatter.format",
+                "[%1$tl:%1$tM:%1$tS:%1$tL] [%4$s] %2$s: %5$s%n");
+
+        // parse command line options
+        Options options = new Options();
+        options.addOption("paths", true, "number of paths of the board, an integer");
+        options.addOption("events", true, "number of events per run, an integer");
+        options.addOption("rounds", true, "number of runs of each mode, an integer");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e1) {
+            help(options);
+        }
+
+        int paths = 0;
+        int events = 0;
+        int rounds = 0;
+        try {
+            paths = Integer.parseInt(cmd.getOptionValue("paths", "5000"));
+            events = Integer.parseInt(cmd.getOptionValue("events", "2000"));
+            rounds = Integer.parseInt(cmd.getOptionValue("rounds", "7"));
+        } catch (NumberFormatException e) {
+            System.out.println("bad option value: " + e.getMessage());
+            help(options);
+        }
+
+        LoggingBenchmark benchmark = new LoggingBenchmark(paths);
+        log.info("board of " + paths + " paths, " + benchmark.boardLength() + " chars, "
+                + events + " events per run");
+        for (Level level : new Level[]{Level.WARNING, Level.INFO}) {
+            double[] fastest = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+            // the first round warms up
+            for (int round = 0; round <= rounds; round++) {
+                for (int mode = none; mode <= lazy; mode++) {
+                    double perEvent = benchmark.run(mode, level, events);
+                    if (round > 0) {
+                        fastest[mode] = Math.min(fastest[mode], perEvent);
+                    }
+                }
+            }
+            System.out.println(String.format("level %-7s %-5s %8.2f us/event", level, modes[none], fastest[none] / 1000));
+            for (int mode = eager; mode <= lazy; mode++) {
+                double logging = Math.max(0, fastest[mode] - fastest[none]);
+                System.out.println(String.format("level %-7s %-5s %8.2f us/event, logging %6.2f us, %5.1f%% of the handler's CPU time",
+                        level, modes[mode], fastest[mode] / 1000, logging / 1000, 100 * logging / fastest[mode]));
+            }
+        }
+    }
+}
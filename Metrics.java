@@ -0,0 +1,163 @@
+package pb.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Registry of named counters, gauges and latency histograms. Counters are
+ * striped ({@link LongAdder}) and histograms are lock-free, so recording from
+ * many IO threads at once costs little more than an uncontended add. The
+ * registry can be published through JMX and dumped periodically to the log.
+ */
+public class Metrics implements MetricsMXBean {
+
+    private static Logger log = Logger.getLogger(Metrics.class.getName());
+
+    private static Metrics metrics;
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastDumpCounters = new ConcurrentHashMap<>();
+    private long lastDumpNanos = System.nanoTime();
+    private ScheduledExecutorService timer;
+
+    public static synchronized Metrics getInstance() {
+        if (metrics == null) {
+            metrics = new Metrics();
+        }
+        return metrics;
+    }
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, (k) -> new LongAdder()).add(delta);
+    }
+
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Register a value that is read when the metrics are reported, e.g. the
+     * size of a map.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, (k) -> new LatencyHistogram());
+    }
+
+    /**
+     * Remove every metric whose name starts with the prefix, e.g. the per
+     * endpoint metrics of a session that has ended.
+     */
+    public void remove(String prefix) {
+        counters.keySet().removeIf((name) -> name.startsWith(prefix));
+        gauges.keySet().removeIf((name) -> name.startsWith(prefix));
+        histograms.keySet().removeIf((name) -> name.startsWith(prefix));
+        lastDumpCounters.keySet().removeIf((name) -> name.startsWith(prefix));
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public Map<String, String> getHistograms() {
+        Map<String, String> values = new TreeMap<>();
+        histograms.forEach((name, histogram) -> values.put(name, histogram.summary(1000)));
+        return values;
+    }
+
+    /**
+     * Counters are printed with their rate per second since the previous
+     * dump, histograms in microseconds.
+     */
+    @Override
+    public synchronized String getDump() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastDumpNanos) / 1e9);
+        lastDumpNanos = now;
+        StringBuilder sb = new StringBuilder("metrics:");
+        getCounters().forEach((name, value) -> {
+            Long last = lastDumpCounters.put(name, value);
+            double rate = (value - (last == null ? 0 : last)) / seconds;
+            sb.append(String.format("%n  %s = %d (%.1f/s)", name, value, rate));
+        });
+        getGauges().forEach((name, value) -> sb.append(String.format("%n  %s = %d", name, value)));
+        getHistograms().forEach((name, value) -> sb.append(String.format("%n  %s [us] %s", name, value)));
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        counters.values().forEach(LongAdder::reset);
+        histograms.values().forEach(LatencyHistogram::reset);
+        lastDumpCounters.clear();
+    }
+
+    /**
+     * Publish the registry through the platform MBean server.
+     *
+     * @param name e.g. "pb:type=Metrics,name=WhiteboardServer"
+     */
+    public void registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+        } catch (JMException e) {
+            log.warning("could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Log a dump of the registry every period.
+     *
+     * @param periodSeconds
+     */
+    public synchronized void startDump(long periodSeconds) {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(() -> log.info(getDump()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+}
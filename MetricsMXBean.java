@@ -0,0 +1,34 @@
+package pb.utils;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link Metrics}, exposed through JMX.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return every counter by name
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return every gauge by name, read at the time of the call
+     */
+    Map<String, Long> getGauges();
+
+    /**
+     * @return summary of every histogram by name
+     */
+    Map<String, String> getHistograms();
+
+    /**
+     * @return the same text as the periodic dump
+     */
+    String getDump();
+
+    /**
+     * Reset all counters and histograms; gauges are unaffected.
+     */
+    void reset();
+}
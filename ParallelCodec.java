@@ -0,0 +1,144 @@
+package pb.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Encoding and decoding of separator delimited lists, e.g. the paths of a
+ * board, split into independent ranges that are processed in parallel on the
+ * common fork-join pool. The ranges are put back together in order, so the
+ * result is exactly that of doing the work sequentially. Small inputs are
+ * still done sequentially, where splitting would cost more than it saves.
+ */
+public final class ParallelCodec {
+
+    /**
+     * Items below which encoding is done on the calling thread.
+     */
+    public static final int encodeThreshold = Integer.getInteger("pb.parallelEncodeThreshold", 4096);
+
+    /**
+     * Characters below which decoding is done on the calling thread.
+     */
+    public static final int decodeThreshold = Integer.getInteger("pb.parallelDecodeThreshold", 1 << 16);
+
+    /**
+     * Ranges per worker thread, more than one so that a slow range does not
+     * leave the other workers idle.
+     */
+    private static final int rangesPerThread = 4;
+
+    private ParallelCodec() {
+    }
+
+    /**
+     * Append separator followed by each item, in order.
+     *
+     * @param sb
+     * @param count number of items
+     * @param item gives the i-th item, called from any thread
+     * @param separator
+     */
+    public static void encode(StringBuilder sb, int count, IntFunction<?> item, char separator) {
+        int ranges = ranges(count, encodeThreshold);
+        if (ranges == 1) {
+            for (int i = 0; i < count; i++) {
+                sb.append(separator).append(item.apply(i));
+            }
+            return;
+        }
+        List<RecursiveTask<String>> tasks = new ArrayList<>(ranges);
+        for (int r = 0; r < ranges; r++) {
+            int start = (int) ((long) count * r / ranges);
+            int end = (int) ((long) count * (r + 1) / ranges);
+            tasks.add(new RecursiveTask<String>() {
+                @Override
+                protected String compute() {
+                    // not a scratch buffer, the caller's may be in use on this thread
+                    StringBuilder range = new StringBuilder();
+                    for (int i = start; i < end; i++) {
+                        range.append(separator).append(item.apply(i));
+                    }
+                    return range.toString();
+                }
+            });
+        }
+        for (RecursiveTask<String> task : ForkJoinTask.invokeAll(tasks)) {
+            sb.append(task.join());
+        }
+    }
+
+    /**
+     * Decode the separator delimited items of data[start..], skipping empty
+     * ones.
+     *
+     * @param data
+     * @param start index of the first item
+     * @param separator
+     * @param decode turns the text of an item into an item, called from any
+     * thread
+     * @return the items in order
+     */
+    public static <T> List<T> decode(String data, int start, char separator, Function<String, T> decode) {
+        int length = data.length() - start;
+        int ranges = ranges(length, decodeThreshold);
+        if (ranges <= 1) {
+            List<T> items = new ArrayList<>();
+            decodeRange(data, start, data.length(), separator, decode, items);
+            return items;
+        }
+        // cut at the first separator after each even split point
+        List<RecursiveTask<List<T>>> tasks = new ArrayList<>(ranges);
+        int rangeStart = start;
+        for (int r = 1; r <= ranges && rangeStart < data.length(); r++) {
+            int rangeEnd = r == ranges ? data.length()
+                    : data.indexOf(separator, Math.max(rangeStart, start + (int) ((long) length * r / ranges)));
+            if (rangeEnd < 0) {
+                rangeEnd = data.length();
+            }
+            int from = rangeStart;
+            int to = rangeEnd;
+            tasks.add(new RecursiveTask<List<T>>() {
+                @Override
+                protected List<T> compute() {
+                    List<T> items = new ArrayList<>();
+                    decodeRange(data, from, to, separator, decode, items);
+                    return items;
+                }
+            });
+            rangeStart = rangeEnd + 1;
+        }
+        List<T> items = new ArrayList<>();
+        for (RecursiveTask<List<T>> task : ForkJoinTask.invokeAll(tasks)) {
+            items.addAll(task.join());
+        }
+        return items;
+    }
+
+    private static <T> void decodeRange(String data, int start, int end, char separator,
+            Function<String, T> decode, List<T> items) {
+        while (start < end) {
+            int next = data.indexOf(separator, start);
+            if (next < 0 || next > end) {
+                next = end;
+            }
+            if (next > start) {
+                items.add(decode.apply(data.substring(start, next)));
+            }
+            start = next + 1;
+        }
+    }
+
+    private static int ranges(int size, int threshold) {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (size < threshold || parallelism < 2) {
+            return 1;
+        }
+        return Math.min(parallelism * rangesPerThread, Math.max(1, size / Math.max(1, threshold / 4)));
+    }
+}
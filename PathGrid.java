@@ -0,0 +1,260 @@
+package pb.app;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid over the bounding boxes of the paths of a board. Each path is
+ * registered in every cell its bounding box overlaps, so drawing, hit-testing
+ * and deciding whether a change needs a repaint only look at the paths near
+ * the area of interest instead of every path on the board.
+ *
+ * The grid follows the board's {@link VersionedPaths.Snapshot}s. A path is
+ * identified by its position on the board, which does not change while the
+ * path is there, since paths are only added or removed at the top. Bringing
+ * the grid up to a newer snapshot therefore only touches the paths removed
+ * and added in between, see {@link VersionedPaths.Snapshot#commonPaths}.
+ *
+ * Queries return paths in the order they were added, which is the order they
+ * must be drawn in.
+ */
+public class PathGrid {
+
+    /**
+     * Default width and height of a cell, in pixels.
+     */
+    public static final int defaultCellSize = 64;
+
+    /**
+     * Pixels added around the points of a path for the width of its stroke.
+     */
+    private static final int strokeMargin = 2;
+
+    private static final class Entry {
+
+        final WhiteboardPath path;
+        final int position;
+        /**
+         * null if the points of the path could not be read, then the path is
+         * taken to be everywhere
+         */
+        final Rectangle bounds;
+        long seen = 0;
+
+        Entry(WhiteboardPath path, int position, Rectangle bounds) {
+            this.path = path;
+            this.position = position;
+            this.bounds = bounds;
+        }
+    }
+
+    private final int cellSize;
+    private final Map<Long, List<Entry>> cells = new HashMap<>();
+    /**
+     * Entries by position.
+     */
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private final List<Entry> unbounded = new ArrayList<>();
+    private VersionedPaths.Snapshot indexed = null;
+    private long queries = 0;
+
+    public PathGrid(int cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public PathGrid() {
+        this(defaultCellSize);
+    }
+
+    /**
+     * Bring the grid up to a snapshot of the board.
+     *
+     * @param snapshot
+     * @return the area covered by the paths removed and added since the last
+     * snapshot, null if there are none, or the whole plane if a path without
+     * readable points changed
+     */
+    public synchronized Rectangle update(VersionedPaths.Snapshot snapshot) {
+        if (snapshot == indexed) {
+            return null;
+        }
+        int common = indexed == null ? 0 : snapshot.commonPaths(indexed);
+        Rectangle dirty = null;
+        while (entries.size() > common) {
+            dirty = union(dirty, remove(entries.remove(entries.size() - 1)));
+        }
+        List<WhiteboardPath> added = snapshot.getPaths(common);
+        for (WhiteboardPath path : added) {
+            dirty = union(dirty, insert(path));
+        }
+        indexed = snapshot;
+        return dirty;
+    }
+
+    /**
+     * @param snapshot the board to query, the grid is brought up to it first
+     * @param area e.g. the visible region, null for the whole board
+     * @return the paths whose bounding boxes overlap the area, in drawing order
+     */
+    public synchronized List<WhiteboardPath> query(VersionedPaths.Snapshot snapshot, Rectangle area) {
+        update(snapshot);
+        if (area == null) {
+            List<WhiteboardPath> paths = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                paths.add(entry.path);
+            }
+            return paths;
+        }
+        List<WhiteboardPath> paths = new ArrayList<>();
+        for (Entry entry : find(area)) {
+            paths.add(entry.path);
+        }
+        return paths;
+    }
+
+    /**
+     * @param snapshot the board to look in, the grid is brought up to it first
+     * @param point
+     * @param tolerance distance in pixels around the point that counts as a hit
+     * @return the position on the board of the topmost path whose bounding
+     * box is within tolerance of the point, or -1 if there is none
+     */
+    public synchronized int hitTest(VersionedPaths.Snapshot snapshot, Point point, int tolerance) {
+        update(snapshot);
+        Rectangle area = new Rectangle(point.x - tolerance, point.y - tolerance,
+                2 * tolerance + 1, 2 * tolerance + 1);
+        List<Entry> found = find(area);
+        return found.isEmpty() ? -1 : found.get(found.size() - 1).position;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the entries overlapping the area, in drawing order
+     */
+    private List<Entry> find(Rectangle area) {
+        long query = ++queries;
+        List<Entry> found = new ArrayList<>(unbounded);
+        for (Entry entry : unbounded) {
+            entry.seen = query;
+        }
+        CellVisitor visitor = (key) -> {
+            List<Entry> cell = cells.get(key);
+            if (cell != null) {
+                for (Entry entry : cell) {
+                    // a path is in every cell its bounding box overlaps, only take it once
+                    if (entry.seen != query && entry.bounds.intersects(area)) {
+                        entry.seen = query;
+                        found.add(entry);
+                    }
+                }
+            }
+        };
+        if (cellCount(area) > cells.size()) {
+            // e.g. a view zoomed far out, most of its cells are empty
+            for (Long key : cells.keySet()) {
+                visitor.visit(key);
+            }
+        } else {
+            forEachCell(area, visitor);
+        }
+        found.sort((a, b) -> Integer.compare(a.position, b.position));
+        return found;
+    }
+
+    private long cellCount(Rectangle area) {
+        long columns = Math.floorDiv((long) area.x + Math.max(area.width, 1) - 1, cellSize) - Math.floorDiv((long) area.x, cellSize) + 1;
+        long rows = Math.floorDiv((long) area.y + Math.max(area.height, 1) - 1, cellSize) - Math.floorDiv((long) area.y, cellSize) + 1;
+        return columns * rows;
+    }
+
+    /**
+     * @return the bounding box of the path
+     */
+    private Rectangle insert(WhiteboardPath path) {
+        Entry entry = new Entry(path, entries.size(), boundsOf(path));
+        entries.add(entry);
+        if (entry.bounds == null) {
+            unbounded.add(entry);
+            return everywhere();
+        }
+        forEachCell(entry.bounds, (key) -> cells.computeIfAbsent(key, (k) -> new ArrayList<>()).add(entry));
+        return entry.bounds;
+    }
+
+    /**
+     * @return the bounding box of the removed path
+     */
+    private Rectangle remove(Entry entry) {
+        if (entry.bounds == null) {
+            unbounded.remove(entry);
+            return everywhere();
+        }
+        forEachCell(entry.bounds, (key) -> {
+            List<Entry> cell = cells.get(key);
+            // paths are removed from the top, so the entry is at or near the end
+            for (int i = cell.size() - 1; i >= 0; i--) {
+                if (cell.get(i) == entry) {
+                    cell.remove(i);
+                    break;
+                }
+            }
+            if (cell.isEmpty()) {
+                cells.remove(key);
+            }
+        });
+        return entry.bounds;
+    }
+
+    /**
+     * @param path
+     * @return the bounding box of the points of the path, grown by the width
+     * of the stroke, or null if its points can't be read
+     */
+    static Rectangle boundsOf(WhiteboardPath path) {
+        ArrayList<Point> points = StrokeSimplifier.pointsOf(path);
+        if (points == null) {
+            return null;
+        }
+        if (points.isEmpty()) {
+            return new Rectangle(0, 0, 0, 0);
+        }
+        Rectangle bounds = new Rectangle(points.get(0));
+        for (Point point : points) {
+            bounds.add(point);
+        }
+        bounds.grow(strokeMargin, strokeMargin);
+        return bounds;
+    }
+
+    private static Rectangle everywhere() {
+        return new Rectangle(Integer.MIN_VALUE / 2, Integer.MIN_VALUE / 2, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    private static Rectangle union(Rectangle a, Rectangle b) {
+        return a == null ? new Rectangle(b) : a.union(b);
+    }
+
+    private interface CellVisitor {
+
+        void visit(long key);
+    }
+
+    private void forEachCell(Rectangle area, CellVisitor visitor) {
+        int minX = Math.floorDiv(area.x, cellSize);
+        int minY = Math.floorDiv(area.y, cellSize);
+        int maxX = Math.floorDiv(area.x + Math.max(area.width, 1) - 1, cellSize);
+        int maxY = Math.floorDiv(area.y + Math.max(area.height, 1) - 1, cellSize);
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                visitor.visit(((long) x << 32) | (y & 0xffffffffL));
+            }
+        }
+    }
+}
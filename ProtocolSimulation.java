@@ -0,0 +1,583 @@
+package pb.app;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Deterministic, in-process simulation of the board sharing protocol between
+ * peers, for checking that copies of a board converge and for measuring how
+ * many updates the protocol handles without real sockets.
+ *
+ * Each board is hosted by one peer and copied by its subscribers. Every copy
+ * is a {@link VersionedPaths}, and changes and updates go through
+ * {@link BoardProtocol}, the same code the handlers in {@link WhiteboardApp}
+ * use:
+ * <ul>
+ * <li>a subscriber sends its changes to the host as requests and does not
+ * apply them itself</li>
+ * <li>the host applies a request, or its own change, and sends the update
+ * with its version before the change to every subscriber</li>
+ * <li>a subscriber that finds updates missing fetches the whole board, and so
+ * does one that lost its connection</li>
+ * </ul>
+ * Path events carry host:port:boardid%version%PATH rather than the whole
+ * board, as in the application.
+ *
+ * Connections deliver in order after a latency plus jitter, unless a message
+ * is picked to be reordered, in which case it may overtake earlier ones. A
+ * dropped message takes its connection down until the subscriber reconnects.
+ * All randomness comes from one seeded generator and events at the same
+ * virtual time run in the order they were scheduled, so a seed always gives
+ * the same run, and the same digest of the final boards.
+ *
+ * {@link #verify()} runs a few fixed runs with and without faults and fails if
+ * any copy does not end up identical to its host's board.
+ */
+public class ProtocolSimulation {
+
+    private static Logger log = Logger.getLogger(ProtocolSimulation.class.getName());
+
+    /**
+     * One copy of a board, on the peer that hosts it or on a subscriber.
+     */
+    private final class Replica {
+
+        final int peer;
+        final Board board;
+        final VersionedPaths paths = new VersionedPaths(WhiteboardApp.historyLimit);
+        final BoardProtocol.Subscription subscription = new BoardProtocol.Subscription();
+        Connection connection = null;
+        int drawn = 0;
+
+        Replica(int peer, Board board) {
+            this.peer = peer;
+            this.board = board;
+        }
+    }
+
+    private final class Board {
+
+        final String name;
+        final Replica host;
+        final List<Replica> subscribers = new ArrayList<>();
+
+        Board(int hostPeer) {
+            this.name = "sim:" + hostPeer + ":board" + hostPeer;
+            this.host = new Replica(hostPeer, this);
+        }
+    }
+
+    /**
+     * Connection between a subscriber and the host of its board.
+     */
+    private final class Connection {
+
+        final Replica subscriber;
+        long lastToHost = 0;
+        long lastToSubscriber = 0;
+        int epoch = 0;
+        boolean up = true;
+
+        Connection(Replica subscriber) {
+            this.subscriber = subscriber;
+        }
+    }
+
+    private static final int action = 0;
+    private static final int delivery = 1;
+    private static final int reconnect = 2;
+
+    private static final class Event implements Comparable<Event> {
+
+        final long time;
+        final long seq;
+        final int kind;
+        final Replica replica;
+        final Connection connection;
+        final int epoch;
+        final boolean toHost;
+        final String name;
+        final String data;
+
+        Event(long time, long seq, int kind, Replica replica, Connection connection, int epoch,
+                boolean toHost, String name, String data) {
+            this.time = time;
+            this.seq = seq;
+            this.kind = kind;
+            this.replica = replica;
+            this.connection = connection;
+            this.epoch = epoch;
+            this.toHost = toHost;
+            this.name = name;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int c = Long.compare(time, other.time);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * Outcome of a run.
+     */
+    public static final class Result {
+
+        public long operations;
+        public long sent;
+        public long delivered;
+        public long lost;
+        public long applied;
+        public long ignored;
+        public long reconnects;
+        public long resyncs;
+        public long virtualMillis;
+        public long wallNanos;
+        public int replicas;
+        public int converged;
+        public int reordered;
+        public int diverged;
+        public long digest;
+
+        /**
+         * @return true if every copy ended up identical to its host's board
+         */
+        public boolean isConverged() {
+            return converged == replicas;
+        }
+
+        @Override
+        public String toString() {
+            double wallSeconds = wallNanos / 1e9;
+            return String.format("operations=%d sent=%d delivered=%d lost=%d reconnects=%d resyncs=%d%n"
+                    + "applied=%d ignored=%d virtual=%dms wall=%.3fs%n"
+                    + "throughput: %.0f deliveries/s, %.0f updates applied/s%n"
+                    + "copies=%d converged=%d same-paths-other-order=%d diverged=%d digest=%016x",
+                    operations, sent, delivered, lost, reconnects, resyncs, applied, ignored, virtualMillis,
+                    wallSeconds, delivered / wallSeconds, applied / wallSeconds,
+                    replicas, converged, reordered, diverged, digest);
+        }
+    }
+
+    private final Random random;
+    private final List<Board> boards = new ArrayList<>();
+    private final List<Replica> replicas = new ArrayList<>();
+    private final PriorityQueue<Event> queue = new PriorityQueue<>();
+    private final Color[] colors = {Color.black, Color.red};
+    private long seq = 0;
+    private long now = 0;
+    private long remaining = 0;
+    private Result result;
+
+    private long latency = 20;
+    private long jitter = 10;
+    private double reorderRate = 0;
+    private double dropRate = 0;
+    private long actionInterval = 1000;
+    private double undoRate = 0;
+    private double clearRate = 0;
+    private double restoreRate = 0;
+    private long reconnectDelay = WhiteboardApp.reconnectDelay;
+
+    /**
+     * @param seed
+     * @param peers number of peers, the first boards of them host a board
+     * each and the rest subscribe to one board each
+     * @param boardCount
+     */
+    public ProtocolSimulation(long seed, int peers, int boardCount) {
+        if (boardCount < 1 || peers < boardCount) {
+            throw new IllegalArgumentException("need at least one board and a peer per board");
+        }
+        random = new Random(seed);
+        for (int i = 0; i < boardCount; i++) {
+            Board board = new Board(i);
+            boards.add(board);
+            replicas.add(board.host);
+        }
+        for (int i = boardCount; i < peers; i++) {
+            Board board = boards.get(random.nextInt(boardCount));
+            Replica subscriber = new Replica(i, board);
+            subscriber.connection = new Connection(subscriber);
+            board.subscribers.add(subscriber);
+            replicas.add(subscriber);
+        }
+    }
+
+    /**
+     * @param latency mean one way delay, in virtual milliseconds
+     * @param jitter most extra delay added at random, in virtual milliseconds
+     */
+    public void setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param reorderRate chance a message may overtake earlier messages on its
+     * connection
+     * @param dropRate chance a message is lost, taking its connection down
+     * until the subscriber reconnects
+     */
+    public void setFaults(double reorderRate, double dropRate) {
+        this.reorderRate = reorderRate;
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * @param actionInterval mean time between a peer's actions, in virtual
+     * milliseconds
+     * @param undoRate share of actions that are an undo
+     * @param clearRate share of actions that are a clear
+     * @param restoreRate share of actions that restore an older version from
+     * the peer's copy, the rest draw a path
+     */
+    public void setWorkload(long actionInterval, double undoRate, double clearRate, double restoreRate) {
+        this.actionInterval = actionInterval;
+        this.undoRate = undoRate;
+        this.clearRate = clearRate;
+        this.restoreRate = restoreRate;
+    }
+
+    /**
+     * Run until the given number of actions have been taken and every message
+     * has been delivered or lost.
+     *
+     * @param operations
+     * @return what happened
+     */
+    public Result run(long operations) {
+        result = new Result();
+        remaining = operations;
+        long start = System.nanoTime();
+        for (Replica replica : replicas) {
+            scheduleAction(replica);
+        }
+        while (!queue.isEmpty()) {
+            Event event = queue.poll();
+            now = event.time;
+            switch (event.kind) {
+            case action:
+                act(event.replica);
+                break;
+            case delivery:
+                deliver(event);
+                break;
+            case reconnect:
+                reconnect(event.connection);
+                break;
+            }
+        }
+        result.wallNanos = System.nanoTime() - start;
+        result.virtualMillis = now;
+        check();
+        return result;
+    }
+
+    private void schedule(long delay, int kind, Replica replica, Connection connection, int epoch,
+            boolean toHost, String name, String data) {
+        queue.add(new Event(now + delay, seq++, kind, replica, connection, epoch, toHost, name, data));
+    }
+
+    private void scheduleAction(Replica replica) {
+        long delay = (long) (-Math.log(1.0 - random.nextDouble()) * actionInterval);
+        schedule(delay, action, replica, null, 0, false, null, null);
+    }
+
+    private void act(Replica replica) {
+        if (remaining <= 0) {
+            return;
+        }
+        remaining--;
+        result.operations++;
+        String name = replica.board.name;
+        double choice = random.nextDouble();
+        String request;
+        StringBuilder data = new StringBuilder(name).append('%').append(replica.paths.getVersion()).append('%');
+        if (choice < undoRate) {
+            request = WhiteboardApp.boardUndoAccepted;
+        } else if (choice < undoRate + clearRate) {
+            request = WhiteboardApp.boardClearAccepted;
+        } else if (choice < undoRate + clearRate + restoreRate) {
+            // the paths of a version from the peer's own history
+            request = WhiteboardApp.boardRestoreAccepted;
+            long[] versions = replica.paths.getHistoryVersions();
+            String sep = "";
+            for (WhiteboardPath path : replica.paths.at(versions[random.nextInt(versions.length)]).getPaths()) {
+                data.append(sep).append(path);
+                sep = "%";
+            }
+        } else {
+            request = WhiteboardApp.boardPathAccepted;
+            data.append(newPath(replica));
+        }
+        if (isHost(replica)) {
+            hostChange(replica.board, request, data.toString());
+        } else {
+            // applied when the host's update comes back
+            send(replica.connection, true, request, data.toString());
+        }
+        scheduleAction(replica);
+    }
+
+    private WhiteboardPath newPath(Replica replica) {
+        int n = replica.drawn++;
+        ArrayList<Point> points = new ArrayList<>();
+        points.add(new Point(replica.peer % 1000, n % 1000));
+        points.add(new Point(n / 1000, replica.peer / 1000));
+        return new WhiteboardPath(points, colors[n % colors.length]);
+    }
+
+    private boolean isHost(Replica replica) {
+        return replica.connection == null;
+    }
+
+    private void hostChange(Board board, String request, String data) {
+        String update = BoardProtocol.host(board.host.paths, request, data);
+        if (update == null) {
+            result.ignored++;
+            return;
+        }
+        result.applied++;
+        for (Replica subscriber : board.subscribers) {
+            send(subscriber.connection, false, BoardProtocol.updateFor(request), update);
+        }
+    }
+
+    private void send(Connection connection, boolean toHost, String event, String data) {
+        result.sent++;
+        if (!connection.up) {
+            result.lost++;
+            return;
+        }
+        if (dropRate > 0 && random.nextDouble() < dropRate) {
+            result.lost++;
+            disconnect(connection);
+            return;
+        }
+        long time = now + latency + (jitter > 0 ? (long) random.nextInt((int) jitter + 1) : 0);
+        if (reorderRate == 0 || random.nextDouble() >= reorderRate) {
+            // in order behind whatever is already on its way
+            if (toHost) {
+                time = Math.max(time, connection.lastToHost);
+                connection.lastToHost = time;
+            } else {
+                time = Math.max(time, connection.lastToSubscriber);
+                connection.lastToSubscriber = time;
+            }
+        }
+        schedule(time - now, delivery, null, connection, connection.epoch, toHost, event, data);
+    }
+
+    private void disconnect(Connection connection) {
+        connection.up = false;
+        connection.epoch++;
+        schedule(reconnectDelay, reconnect, null, connection, connection.epoch, false, null, null);
+    }
+
+    private void reconnect(Connection connection) {
+        result.reconnects++;
+        connection.up = true;
+        connection.lastToHost = now;
+        connection.lastToSubscriber = now;
+        sendBoard(connection);
+    }
+
+    private void sendBoard(Connection connection) {
+        Board board = connection.subscriber.board;
+        send(connection, false, WhiteboardApp.boardData, board.name + "%" + board.host.paths.snapshot());
+    }
+
+    private void deliver(Event event) {
+        Connection connection = event.connection;
+        if (event.epoch != connection.epoch) {
+            // sent on a connection that has since gone down
+            result.lost++;
+            return;
+        }
+        result.delivered++;
+        String data = event.data;
+        Board board = connection.subscriber.board;
+        if (event.toHost) {
+            if (event.name.equals(WhiteboardApp.getBoardData)) {
+                sendBoard(connection);
+            } else {
+                hostChange(board, event.name, data);
+            }
+            return;
+        }
+        Replica subscriber = connection.subscriber;
+        if (event.name.equals(WhiteboardApp.boardData)) {
+            long version = WhiteboardApp.getBoardVersion(data);
+            subscriber.paths.reset(version, WhiteboardApp.parsePaths(data));
+            result.applied++;
+            if (!subscriber.subscription.loaded(version)) {
+                resync(connection);
+            }
+            return;
+        }
+        switch (subscriber.subscription.update(subscriber.paths, event.name, data)) {
+        case APPLIED:
+            result.applied++;
+            break;
+        case GAP:
+            result.ignored++;
+            resync(connection);
+            break;
+        default:
+            result.ignored++;
+            break;
+        }
+    }
+
+    private void resync(Connection connection) {
+        result.resyncs++;
+        send(connection, true, WhiteboardApp.getBoardData, connection.subscriber.board.name);
+    }
+
+    /**
+     * Compare every copy with its host's board and work out the digest.
+     */
+    private void check() {
+        CRC32 crc = new CRC32();
+        for (Board board : boards) {
+            String hostPaths = board.host.paths.snapshot().toString();
+            List<String> hostSorted = sortedPaths(board.host);
+            crc.update(hostPaths.getBytes(StandardCharsets.UTF_8));
+            for (Replica subscriber : board.subscribers) {
+                String paths = subscriber.paths.snapshot().toString();
+                crc.update(paths.getBytes(StandardCharsets.UTF_8));
+                result.replicas++;
+                if (paths.substring(paths.indexOf('%') + 1).equals(hostPaths.substring(hostPaths.indexOf('%') + 1))) {
+                    result.converged++;
+                } else if (sortedPaths(subscriber).equals(hostSorted)) {
+                    result.reordered++;
+                } else {
+                    result.diverged++;
+                }
+            }
+        }
+        result.digest = crc.getValue();
+    }
+
+    private static List<String> sortedPaths(Replica replica) {
+        List<String> paths = new ArrayList<>();
+        for (WhiteboardPath path : replica.paths.snapshot().getPaths()) {
+            paths.add(path.toString());
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /**
+     * Test entry point: a few fixed runs, without faults, with reordering, with
+     * lost connections and with both, each with undo, clear and restore mixed
+     * in.
+     *
+     * @throws AssertionError if a copy of a board did not end up identical to
+     * its host's board in any of the runs
+     */
+    public static void verify() {
+        double[][] faults = {{0, 0}, {0.05, 0}, {0, 0.002}, {0.05, 0.002}};
+        for (long seed = 1; seed <= 3; seed++) {
+            for (double[] fault : faults) {
+                ProtocolSimulation simulation = new ProtocolSimulation(seed, 200, 5);
+                simulation.setFaults(fault[0], fault[1]);
+                simulation.setWorkload(1000, 0.1, 0.02, 0.01);
+                Result result = simulation.run(10000);
+                if (!result.isConverged()) {
+                    throw new AssertionError("seed " + seed + " reorder " + fault[0] + " drop " + fault[1]
+                            + " did not converge:\n" + result);
+                }
+            }
+        }
+    }
+
+    private static void help(Options options) {
+        String header = "PB Whiteboard protocol simulation for Unimelb COMP90015\n\n";
+        String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("pb.app.ProtocolSimulation", header, options, footer, true);
+        System.exit(-1);
+    }
+
+    public static void main(String[] args) {
+        // set a nice log format
+        System.setProperty("java.util.logging.SimpleFormatter.format",
+                "[%1$tl:%1$tM:%1$tS:%1$tL] [%4$s] %2$s: %5$s%n");
+
+        // parse command line options
+        Options options = new Options();
+        options.addOption("seed", true, "seed of the run, an integer");
+        options.addOption("peers", true, "number of peers, an integer");
+        options.addOption("boards", true, "number of boards, an integer");
+        options.addOption("operations", true, "number of actions taken by all peers together, an integer");
+        options.addOption("latency", true, "one way delay in milliseconds, an integer");
+        options.addOption("jitter", true, "most extra delay in milliseconds, an integer");
+        options.addOption("reorder", true, "chance a message may overtake earlier ones, 0 to 1");
+        options.addOption("drop", true, "chance a message is lost with its connection, 0 to 1");
+        options.addOption("interval", true, "mean time between a peer's actions in milliseconds, an integer");
+        options.addOption("undo", true, "share of actions that are an undo, 0 to 1");
+        options.addOption("clear", true, "share of actions that are a clear, 0 to 1");
+        options.addOption("restore", true, "share of actions that restore an older version, 0 to 1");
+        options.addOption("verify", false, "check convergence over fixed runs instead of one run");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e1) {
+            help(options);
+        }
+
+        if (cmd.hasOption("verify")) {
+            verify();
+            System.out.println("all runs converged");
+            return;
+        }
+
+        ProtocolSimulation simulation = null;
+        long operations = 0;
+        try {
+            long seed = Long.parseLong(cmd.getOptionValue("seed", "1"));
+            int peers = Integer.parseInt(cmd.getOptionValue("peers", "1000"));
+            int boardCount = Integer.parseInt(cmd.getOptionValue("boards", "10"));
+            operations = Long.parseLong(cmd.getOptionValue("operations", "100000"));
+            simulation = new ProtocolSimulation(seed, peers, boardCount);
+            simulation.setLatency(Long.parseLong(cmd.getOptionValue("latency", "20")),
+                    Long.parseLong(cmd.getOptionValue("jitter", "10")));
+            simulation.setFaults(Double.parseDouble(cmd.getOptionValue("reorder", "0")),
+                    Double.parseDouble(cmd.getOptionValue("drop", "0")));
+            simulation.setWorkload(Long.parseLong(cmd.getOptionValue("interval", "1000")),
+                    Double.parseDouble(cmd.getOptionValue("undo", "0")),
+                    Double.parseDouble(cmd.getOptionValue("clear", "0")),
+                    Double.parseDouble(cmd.getOptionValue("restore", "0")));
+        } catch (IllegalArgumentException e) {
+            System.out.println("bad option value: " + e.getMessage());
+            help(options);
+        }
+
+        log.info("simulating " + operations + " actions");
+        Result result = simulation.run(operations);
+        System.out.println(result);
+        if (!result.isConverged()) {
+            log.severe("copies of a board diverged");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package pb.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging for hot paths such as event handlers. Messages are built lazily by
+ * a supplier, so nothing is concatenated unless the record will actually be
+ * written; each category is limited to a number of records per second, with
+ * the number of dropped records reported on the next one that gets through;
+ * and messages are truncated so a whole serialized board never ends up in the
+ * log.
+ *
+ * Records have the form "category: message".
+ */
+public class RateLimitedLogger {
+
+    /**
+     * Default number of records per category per second.
+     */
+    public static final int defaultRate = 20;
+
+    /**
+     * Default maximum length of a message, longer messages are truncated.
+     */
+    public static final int defaultMaxLength = 200;
+
+    private static final class Window {
+
+        long second = Long.MIN_VALUE;
+        int written;
+        int suppressed;
+    }
+
+    private final Logger logger;
+    private final int rate;
+    private final int maxLength;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    public RateLimitedLogger(Logger logger, int rate, int maxLength) {
+        this.logger = logger;
+        this.rate = rate;
+        this.maxLength = maxLength;
+    }
+
+    public RateLimitedLogger(Logger logger) {
+        this(logger, defaultRate, defaultMaxLength);
+    }
+
+    public void info(String category, Supplier<String> message) {
+        log(Level.INFO, category, message);
+    }
+
+    public void warning(String category, Supplier<String> message) {
+        log(Level.WARNING, category, message);
+    }
+
+    public void fine(String category, Supplier<String> message) {
+        log(Level.FINE, category, message);
+    }
+
+    public void log(Level level, String category, Supplier<String> message) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        Window window = windows.computeIfAbsent(category, (k) -> new Window());
+        int suppressed;
+        synchronized (window) {
+            if (window.second != second) {
+                window.second = second;
+                window.written = 0;
+            }
+            if (window.written >= rate) {
+                window.suppressed++;
+                return;
+            }
+            window.written++;
+            suppressed = window.suppressed;
+            window.suppressed = 0;
+        }
+        String text = category + ": " + truncate(message.get(), maxLength);
+        if (suppressed > 0) {
+            text += " (" + suppressed + " earlier " + category + " records suppressed)";
+        }
+        logger.log(level, text);
+    }
+
+    /**
+     * @param text
+     * @param maxLength
+     * @return the text, cut to maxLength characters with a note of how long it
+     * was
+     */
+    public static String truncate(String text, int maxLength) {
+        if (text == null || text.length() <= maxLength) {
+            return text;
+        }
+        return text.substring(0, maxLength) + "...[" + text.length() + " chars]";
+    }
+}
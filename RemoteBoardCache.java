@@ -0,0 +1,140 @@
+package pb.app;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of which remote boards are held in full and which are only
+ * stubs. A remote board starts as a stub, i.e. just its name in the board
+ * list, and is only downloaded when the user selects it. Downloaded boards
+ * are kept least recently used first, and once their estimated size goes over
+ * the memory budget the oldest are turned back into stubs, to be downloaded
+ * again if they are selected again. The estimate follows the updates applied
+ * to a board, so boards that grow after being downloaded are evicted too.
+ */
+public class RemoteBoardCache {
+
+    /**
+     * Default memory budget for remote boards, in bytes.
+     */
+    public static final long defaultMemoryBudget = 32L * 1024 * 1024;
+
+    /**
+     * Downloaded boards, least recently used first. Only selecting a board
+     * counts as using it, not updates to it.
+     */
+    private final LinkedHashMap<String, Boolean> materialized = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> sizes = new HashMap<>();
+    private long memoryBudget;
+    private long memoryUsed = 0;
+
+    public RemoteBoardCache(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public RemoteBoardCache() {
+        this(defaultMemoryBudget);
+    }
+
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @param boardName
+     * @return true if the board has been downloaded and not evicted since
+     */
+    public synchronized boolean isMaterialized(String boardName) {
+        return sizes.containsKey(boardName);
+    }
+
+    /**
+     * Mark a board as used, so it is evicted later.
+     */
+    public synchronized void touch(String boardName) {
+        materialized.get(boardName);
+    }
+
+    /**
+     * Record that a board has been downloaded.
+     *
+     * @param boardName
+     * @param bytes estimated memory used by the board
+     * @param keep a board that must not be evicted, e.g. the selected one,
+     * may be null
+     * @return the boards to turn back into stubs, least recently used first
+     */
+    public synchronized List<String> materialized(String boardName, long bytes, String keep) {
+        materialized.put(boardName, true);
+        // a board just downloaded is about to be shown
+        return resize(boardName, bytes, keep, true);
+    }
+
+    /**
+     * Record that updates changed the size of a downloaded board.
+     *
+     * @param boardName
+     * @param bytes estimated memory now used by the board
+     * @param keep a board that must not be evicted, e.g. the selected one,
+     * may be null
+     * @return the boards to turn back into stubs, least recently used first,
+     * which may include this one unless it is kept; none if the board is not
+     * downloaded
+     */
+    public synchronized List<String> resized(String boardName, long bytes, String keep) {
+        if (!sizes.containsKey(boardName)) {
+            return new ArrayList<>();
+        }
+        return resize(boardName, bytes, keep, false);
+    }
+
+    /**
+     * Record that updates added to the size of a downloaded board, see
+     * {@link #resized}.
+     *
+     * @param bytes estimated memory added
+     */
+    public synchronized List<String> grown(String boardName, long bytes, String keep) {
+        Long size = sizes.get(boardName);
+        if (size == null) {
+            return new ArrayList<>();
+        }
+        return resize(boardName, size + bytes, keep, false);
+    }
+
+    private List<String> resize(String boardName, long bytes, String keep, boolean keepBoard) {
+        Long previous = sizes.put(boardName, bytes);
+        memoryUsed += bytes - (previous == null ? 0 : previous);
+        List<String> victims = new ArrayList<>();
+        Iterator<String> it = materialized.keySet().iterator();
+        while (memoryUsed > memoryBudget && it.hasNext()) {
+            String victim = it.next();
+            if (victim.equals(keep) || (keepBoard && victim.equals(boardName))) {
+                continue;
+            }
+            memoryUsed -= sizes.remove(victim);
+            victims.add(victim);
+            it.remove();
+        }
+        return victims;
+    }
+
+    /**
+     * Forget a board, e.g. because it was deleted or unshared.
+     */
+    public synchronized void remove(String boardName) {
+        materialized.remove(boardName);
+        Long bytes = sizes.remove(boardName);
+        if (bytes != null) {
+            memoryUsed -= bytes;
+        }
+    }
+
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+}
@@ -0,0 +1,109 @@
+package pb.app;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Coalesces repaint requests for boards. Event threads mark boards as dirty
+ * and, at most once per frame, each dirty board is prepared for drawing on
+ * the scheduler's own thread, and what was prepared is handed to the GUI
+ * thread in a single call. Many remote updates arriving within one frame
+ * therefore cost one repaint rather than one each, and the GUI thread only
+ * draws what is ready.
+ *
+ * @param <T> what a board is prepared into
+ */
+public class RenderScheduler<T> {
+
+    /**
+     * Default frame rate, in frames per second.
+     */
+    public static final int defaultFrameRate = 60;
+
+    private final Set<String> dirtyBoards = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean framePending = new AtomicBoolean(false);
+    private final Function<String, T> prepare;
+    private final Consumer<Map<String, T>> repaint;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param frameRate maximum number of repaints per second
+     * @param prepare called off the GUI thread for each board that changed
+     * since the last frame, returns null for a board that needs no repaint
+     * @param repaint called on the GUI thread with what was prepared, by
+     * board name
+     */
+    public RenderScheduler(int frameRate, Function<String, T> prepare, Consumer<Map<String, T>> repaint) {
+        this.prepare = prepare;
+        this.repaint = repaint;
+        timer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "render-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, frameRate);
+        timer.scheduleAtFixedRate(this::frame, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    public RenderScheduler(Function<String, T> prepare, Consumer<Map<String, T>> repaint) {
+        this(defaultFrameRate, prepare, repaint);
+    }
+
+    /**
+     * Request a repaint of the given board on the next frame. Can be called
+     * from any thread.
+     *
+     * @param boardName must have the form peer:port:boardid
+     */
+    public void markDirty(String boardName) {
+        dirtyBoards.add(boardName);
+    }
+
+    /**
+     * Stop scheduling frames.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void frame() {
+        // skip this frame if the GUI thread has not finished the last one
+        if (dirtyBoards.isEmpty() || !framePending.compareAndSet(false, true)) {
+            return;
+        }
+        Set<String> boards = new HashSet<>();
+        for (String boardName : dirtyBoards) {
+            dirtyBoards.remove(boardName);
+            boards.add(boardName);
+        }
+        Map<String, T> prepared = new HashMap<>();
+        for (String boardName : boards) {
+            T frame = prepare.apply(boardName);
+            if (frame != null) {
+                prepared.put(boardName, frame);
+            }
+        }
+        if (prepared.isEmpty()) {
+            framePending.set(false);
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            try {
+                repaint.accept(prepared);
+            } finally {
+                framePending.set(false);
+            }
+        });
+    }
+}
@@ -0,0 +1,40 @@
+package pb.utils;
+
+/**
+ * Per thread scratch space for building event arguments, so that encoding a
+ * board or a batch reuses the same character buffer instead of allocating
+ * and growing a new one every time. A buffer that has grown beyond
+ * {@link #maxRetained} characters, e.g. for one very large board, is dropped
+ * rather than kept for the life of the thread.
+ *
+ * The builder returned is only valid until the next call on the same thread,
+ * so it must not be held across calls that may use it as well.
+ */
+public final class ScratchBuffers {
+
+    /**
+     * Largest buffer, in characters, kept for reuse.
+     */
+    public static final int maxRetained = 1 << 20;
+
+    private static final int initialCapacity = 256;
+
+    private static final ThreadLocal<StringBuilder> builders =
+            ThreadLocal.withInitial(() -> new StringBuilder(initialCapacity));
+
+    private ScratchBuffers() {
+    }
+
+    /**
+     * @return an empty builder for this thread
+     */
+    public static StringBuilder builder() {
+        StringBuilder sb = builders.get();
+        if (sb.capacity() > maxRetained) {
+            sb = new StringBuilder(initialCapacity);
+            builders.set(sb);
+        }
+        sb.setLength(0);
+        return sb;
+    }
+}
@@ -0,0 +1,225 @@
+package pb.app;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Measures what {@link StrokeSimplifier} saves on a corpus of strokes, for a
+ * range of tolerances: the number of points, the bytes of the paths as sent
+ * to other peers, and the time to draw all of them.
+ *
+ * The corpus is either boards exported from the app, see {@link BoardFile},
+ * so strokes recorded from real drawing, or drags made up from a seeded
+ * random walk with mouse jitter. Drawing is timed by drawing each stroke as
+ * connected, anti-aliased line segments into an image of the size of the
+ * window, which is what drawing a path on the draw area amounts to.
+ */
+public class StrokeBenchmark {
+
+    private static Logger log = Logger.getLogger(StrokeBenchmark.class.getName());
+
+    private static final Color[] colors = {Color.black, Color.red};
+
+    private final List<WhiteboardPath> corpus;
+
+    public StrokeBenchmark(List<WhiteboardPath> corpus) {
+        this.corpus = corpus;
+    }
+
+    /**
+     * @param seed
+     * @param strokes number of drags
+     * @return drags of 50 to 500 mouse samples, moving a few pixels a sample
+     * with a slowly turning direction and one pixel of jitter
+     */
+    public static List<WhiteboardPath> syntheticCorpus(long seed, int strokes) {
+        Random random = new Random(seed);
+        List<WhiteboardPath> corpus = new ArrayList<>();
+        for (int s = 0; s < strokes; s++) {
+            int samples = 50 + random.nextInt(451);
+            double x = random.nextInt(600);
+            double y = random.nextInt(600);
+            double direction = random.nextDouble() * 2 * Math.PI;
+            ArrayList<Point> points = new ArrayList<>();
+            for (int i = 0; i < samples; i++) {
+                direction += random.nextGaussian() * 0.1;
+                double step = 1 + random.nextDouble() * 3;
+                x += Math.cos(direction) * step;
+                y += Math.sin(direction) * step;
+                points.add(new Point((int) Math.round(x) + random.nextInt(3) - 1,
+                        (int) Math.round(y) + random.nextInt(3) - 1));
+            }
+            corpus.add(new WhiteboardPath(points, colors[s % colors.length]));
+        }
+        return corpus;
+    }
+
+    /**
+     * @param files boards exported from the app
+     * @return every path of the boards
+     * @throws IOException
+     */
+    public static List<WhiteboardPath> recordedCorpus(String[] files) throws IOException {
+        List<WhiteboardPath> corpus = new ArrayList<>();
+        for (String file : files) {
+            try (BoardFile boardFile = BoardFile.open(Paths.get(file))) {
+                corpus.addAll(boardFile.paths());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Simplify the corpus and measure the result.
+     *
+     * @param tolerance
+     * @param repeats number of times the corpus is drawn, the fastest counts
+     * @return e.g. "tolerance=1.0 strokes=2000 points=547483->265042 (-51.6%)
+     * bytes=..."
+     */
+    public String measure(double tolerance, int repeats) {
+        StrokeSimplifier simplifier = new StrokeSimplifier(tolerance);
+        long pointsIn = 0;
+        long pointsOut = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+        int skipped = 0;
+        List<List<Point>> strokes = new ArrayList<>();
+        long start = System.nanoTime();
+        for (WhiteboardPath path : corpus) {
+            ArrayList<Point> original = StrokeSimplifier.pointsOf(path);
+            if (original == null) {
+                skipped++;
+                continue;
+            }
+            WhiteboardPath simplified = simplifier.simplify(path);
+            ArrayList<Point> points = simplified == path ? original : StrokeSimplifier.pointsOf(simplified);
+            pointsIn += original.size();
+            pointsOut += points.size();
+            bytesIn += path.toString().getBytes(StandardCharsets.UTF_8).length;
+            bytesOut += simplified.toString().getBytes(StandardCharsets.UTF_8).length;
+            strokes.add(points);
+        }
+        long simplifyMillis = (System.nanoTime() - start) / 1000000;
+        long[] drawMillis = new long[repeats];
+        for (int r = 0; r < repeats; r++) {
+            drawMillis[r] = draw(strokes);
+        }
+        Arrays.sort(drawMillis);
+        return String.format("tolerance=%.1f strokes=%d points=%d->%d (%s) bytes=%d->%d (%s)"
+                + " simplify=%dms draw=%dms%s",
+                tolerance, strokes.size(), pointsIn, pointsOut, change(pointsIn, pointsOut),
+                bytesIn, bytesOut, change(bytesIn, bytesOut), simplifyMillis,
+                repeats == 0 ? 0 : drawMillis[0], skipped == 0 ? "" : " skipped=" + skipped);
+    }
+
+    /**
+     * @return milliseconds to draw the strokes
+     */
+    private static long draw(List<List<Point>> strokes) {
+        BufferedImage image = new BufferedImage(600, 600, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = image.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setStroke(new BasicStroke(2));
+        long start = System.nanoTime();
+        for (List<Point> points : strokes) {
+            for (int i = 1; i < points.size(); i++) {
+                Point a = points.get(i - 1);
+                Point b = points.get(i);
+                g2.drawLine(a.x, a.y, b.x, b.y);
+            }
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        g2.dispose();
+        return millis;
+    }
+
+    private static String change(long before, long after) {
+        return before == 0 ? "n/a" : String.format("%+.1f%%", 100.0 * (after - before) / before);
+    }
+
+    private static void help(Options options) {
+        String header = "PB Whiteboard stroke simplification benchmark for Unimelb COMP90015\n\n";
+        String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("pb.app.StrokeBenchmark", header, options, footer, true);
+        System.exit(-1);
+    }
+
+    public static void main(String[] args) {
+        // set a nice log format
+        System.setProperty("java.util.logging.SimpleFormatter.format",
+                "[%1$tl:%1$tM:%1$tS:%1$tL] [%4$s] %2$s: %5$s%n");
+        System.setProperty("java.awt.headless", "true");
+
+        // parse command line options
+        Options options = new Options();
+        options.addOption("corpus", true, "comma separated board files exported from the app, instead of made up drags");
+        options.addOption("strokes", true, "number of made up drags, an integer");
+        options.addOption("seed", true, "seed of the made up drags, an integer");
+        options.addOption("tolerances", true, "comma separated tolerances in pixels");
+        options.addOption("repeats", true, "number of times the corpus is drawn, an integer");
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e1) {
+            help(options);
+        }
+
+        List<WhiteboardPath> corpus = null;
+        double[] tolerances = null;
+        int repeats = 0;
+        try {
+            if (cmd.hasOption("corpus")) {
+                corpus = recordedCorpus(cmd.getOptionValue("corpus").split(","));
+            } else {
+                corpus = syntheticCorpus(Long.parseLong(cmd.getOptionValue("seed", "1")),
+                        Integer.parseInt(cmd.getOptionValue("strokes", "2000")));
+            }
+            String[] values = cmd.getOptionValue("tolerances", "0,0.5,1,2,4").split(",");
+            tolerances = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                tolerances[i] = Double.parseDouble(values[i]);
+            }
+            repeats = Integer.parseInt(cmd.getOptionValue("repeats", "5"));
+        } catch (IllegalArgumentException e) {
+            System.out.println("bad option value: " + e.getMessage());
+            help(options);
+        } catch (IOException e) {
+            System.out.println("could not read corpus: " + e.getMessage());
+            help(options);
+        }
+
+        log.info("benchmarking " + corpus.size() + " strokes");
+        StrokeBenchmark benchmark = new StrokeBenchmark(corpus);
+        // once to warm up
+        benchmark.measure(tolerances[0], repeats);
+        for (double tolerance : tolerances) {
+            System.out.println(benchmark.measure(tolerance, repeats));
+        }
+    }
+}
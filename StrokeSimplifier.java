@@ -0,0 +1,242 @@
+package pb.app;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ramer-Douglas-Peucker simplification of strokes. Points that lie within the
+ * tolerance of the line through their neighbours are dropped, so a drag that
+ * produced hundreds of mouse samples along a nearly straight line is stored,
+ * sent and redrawn as a handful of points.
+ *
+ * Keeps running totals of points before and after simplification, so the
+ * reduction can be reported. The tolerance can be changed at any time without
+ * losing the totals.
+ */
+public class StrokeSimplifier {
+
+    /**
+     * Colors a path can be drawn in, see {@link #simplify(WhiteboardPath)}.
+     */
+    private static final Color[] colors = {Color.black, Color.red};
+
+    private volatile double tolerance;
+    private final AtomicLong pointsIn = new AtomicLong();
+    private final AtomicLong pointsOut = new AtomicLong();
+    private final AtomicLong strokes = new AtomicLong();
+
+    /**
+     * @param tolerance maximum distance in pixels a dropped point may be from
+     * the simplified stroke, 0 keeps every point
+     */
+    public StrokeSimplifier(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * @param tolerance 0 to keep every point
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Simplify a finished path, e.g. one handed over by the draw area. The
+     * points are read back from the text form of the path, and only if
+     * building the path again from them gives the same text; a path whose
+     * form is not understood is returned unchanged.
+     *
+     * @param path
+     * @return the simplified path, or the same path if no point was dropped
+     */
+    public WhiteboardPath simplify(WhiteboardPath path) {
+        if (tolerance <= 0) {
+            return path;
+        }
+        String text = path.toString();
+        for (Color color : colors) {
+            ArrayList<Point> points = readBack(text, color);
+            if (points != null) {
+                ArrayList<Point> simplified = simplify(points);
+                return simplified.size() < points.size() ? new WhiteboardPath(simplified, color) : path;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * @param path
+     * @return the points of the path read back from its text form, or null
+     * if the form is not understood
+     */
+    public static ArrayList<Point> pointsOf(WhiteboardPath path) {
+        String text = path.toString();
+        for (Color color : colors) {
+            ArrayList<Point> points = readBack(text, color);
+            if (points != null) {
+                return points;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param path
+     * @return the color of the path read back from its text form, or null if
+     * the form is not understood
+     */
+    public static Color colorOf(WhiteboardPath path) {
+        String text = path.toString();
+        for (Color color : colors) {
+            if (readBack(text, color) != null) {
+                return color;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the points of a path drawn in the color with the given text
+     * form, or null if it is not one
+     */
+    private static ArrayList<Point> readBack(String text, Color color) {
+        String prefix = new WhiteboardPath(new ArrayList<>(), color).toString();
+        if (!text.startsWith(prefix)) {
+            return null;
+        }
+        ArrayList<Point> points = parsePoints(text, prefix.length());
+        if (points == null || !new WhiteboardPath(points, color).toString().equals(text)) {
+            return null;
+        }
+        return points;
+    }
+
+    /**
+     * @param points the mouse samples of a stroke, in order
+     * @return the points to keep, always including the first and last
+     */
+    public ArrayList<Point> simplify(List<Point> points) {
+        double tolerance = this.tolerance;
+        ArrayList<Point> result;
+        if (tolerance <= 0 || points.size() < 3) {
+            result = new ArrayList<>(points);
+        } else {
+            boolean[] keep = new boolean[points.size()];
+            keep[0] = true;
+            keep[points.size() - 1] = true;
+            double toleranceSq = tolerance * tolerance;
+            // iterative rather than recursive, long strokes would overflow the stack
+            Deque<int[]> ranges = new ArrayDeque<>();
+            ranges.push(new int[]{0, points.size() - 1});
+            while (!ranges.isEmpty()) {
+                int[] range = ranges.pop();
+                int first = range[0];
+                int last = range[1];
+                double maxDistSq = -1;
+                int index = -1;
+                for (int i = first + 1; i < last; i++) {
+                    double distSq = segmentDistanceSq(points.get(i), points.get(first), points.get(last));
+                    if (distSq > maxDistSq) {
+                        maxDistSq = distSq;
+                        index = i;
+                    }
+                }
+                if (index != -1 && maxDistSq > toleranceSq) {
+                    keep[index] = true;
+                    ranges.push(new int[]{first, index});
+                    ranges.push(new int[]{index, last});
+                }
+            }
+            result = new ArrayList<>();
+            for (int i = 0; i < keep.length; i++) {
+                if (keep[i]) {
+                    result.add(points.get(i));
+                }
+            }
+        }
+        strokes.incrementAndGet();
+        pointsIn.addAndGet(points.size());
+        pointsOut.addAndGet(result.size());
+        return result;
+    }
+
+    public long getStrokes() {
+        return strokes.get();
+    }
+
+    public long getPointsIn() {
+        return pointsIn.get();
+    }
+
+    public long getPointsOut() {
+        return pointsOut.get();
+    }
+
+    /**
+     * @return e.g. "strokes=12 points=1840->212 (88.5% fewer)"
+     */
+    public String report() {
+        long in = pointsIn.get();
+        long out = pointsOut.get();
+        double saved = in == 0 ? 0 : 100.0 * (in - out) / in;
+        return String.format("strokes=%d points=%d->%d (%.1f%% fewer)", strokes.get(), in, out, saved);
+    }
+
+    /**
+     * @param text
+     * @param start where the coordinates start
+     * @return the points, in order, from the integers in the text, taken as x
+     * and y in turn, or null if there is an odd number of them
+     */
+    private static ArrayList<Point> parsePoints(String text, int start) {
+        ArrayList<Point> points = new ArrayList<>();
+        int[] xy = new int[2];
+        int count = 0;
+        int i = start;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            boolean negative = c == '-' && i + 1 < text.length() && Character.isDigit(text.charAt(i + 1));
+            if (!negative && !Character.isDigit(c)) {
+                i++;
+                continue;
+            }
+            int end = negative ? i + 1 : i;
+            while (end < text.length() && Character.isDigit(text.charAt(end))) {
+                end++;
+            }
+            try {
+                xy[count++ % 2] = Integer.parseInt(text.substring(i, end));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (count % 2 == 0) {
+                points.add(new Point(xy[0], xy[1]));
+            }
+            i = end;
+        }
+        return count % 2 == 0 ? points : null;
+    }
+
+    /**
+     * Squared distance from p to the segment a-b.
+     */
+    private static double segmentDistanceSq(Point p, Point a, Point b) {
+        double dx = b.x - a.x;
+        double dy = b.y - a.y;
+        double lengthSq = dx * dx + dy * dy;
+        double t = lengthSq == 0 ? 0 : ((p.x - a.x) * dx + (p.y - a.y) * dy) / lengthSq;
+        t = Math.max(0, Math.min(1, t));
+        double ex = p.x - (a.x + t * dx);
+        double ey = p.y - (a.y + t * dy);
+        return ex * ex + ey * ey;
+    }
+}
@@ -0,0 +1,177 @@
+package pb.app;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pb.utils.LatencyHistogram;
+
+/**
+ * Optional end-to-end latency tracing of strokes. When tracing is enabled, a
+ * stroke sent to another peer carries a small header in front of the usual
+ * argument:
+ *
+ * <pre>
+ * ~origin|localAccept|hostAccept|rebroadcast~host:port:boardid%version%PATHS
+ * </pre>
+ *
+ * where origin is the peer:port of the peer that drew the stroke and the
+ * other fields are wall clock times in microseconds, appended as the stroke
+ * passes through each stage. When the stroke is applied on a remote peer the
+ * latencies are recorded in histograms per stage, per board and per origin
+ * peer, which can be dumped and reset on demand.
+ *
+ * Stripping the header is a single character test, so untraced events cost
+ * nothing extra. Peers that predate tracing can't parse the header, so it is
+ * only sent to peers that announced they understand it, see
+ * {@link WhiteboardApp#boardTraceHeaders}. Stamps from different peers are
+ * only as accurate as the peers' clocks are synchronized.
+ */
+public class StrokeTracer {
+
+    private static final char marker = '~';
+
+    private volatile boolean enabled;
+    private final Map<String, LatencyHistogram> byBoard = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> byPeer = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> byStage = new ConcurrentHashMap<>();
+
+    public StrokeTracer(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param data an event argument, traced or not
+     * @return the argument without any trace header
+     */
+    public static String strip(String data) {
+        if (data.isEmpty() || data.charAt(0) != marker) {
+            return data;
+        }
+        return data.substring(data.indexOf(marker, 1) + 1);
+    }
+
+    /**
+     * Start a trace for a stroke accepted locally by a peer that does not
+     * host the board.
+     *
+     * @param origin peer:port of this peer
+     * @param data the event argument
+     * @return the argument with a trace header if tracing is enabled
+     */
+    public String start(String origin, String data) {
+        if (!enabled) {
+            return data;
+        }
+        return marker + origin + "|" + now() + marker + data;
+    }
+
+    /**
+     * Start a trace for a stroke drawn on the peer hosting the board, i.e.
+     * accepted locally and by the host at once. The rebroadcast stage is
+     * stamped when the host sends the update out.
+     */
+    public String startAtHost(String origin, String data) {
+        if (!enabled) {
+            return data;
+        }
+        long now = now();
+        return marker + origin + "|" + now + "|" + now + marker + data;
+    }
+
+    /**
+     * Append a time stamp for the next stage, if the argument is traced.
+     */
+    public String stamp(String data) {
+        if (data.isEmpty() || data.charAt(0) != marker) {
+            return data;
+        }
+        int end = data.indexOf(marker, 1);
+        if (end < 0) {
+            // not a trace header after all, as in strip()
+            return data;
+        }
+        return data.substring(0, end) + "|" + now() + data.substring(end);
+    }
+
+    /**
+     * Record the latencies of a traced stroke that has just been applied.
+     *
+     * @param boardName
+     * @param data the event argument as received, traced or not
+     */
+    public void applied(String boardName, String data) {
+        if (!enabled || data.isEmpty() || data.charAt(0) != marker) {
+            return;
+        }
+        long applied = now();
+        int end = data.indexOf(marker, 1);
+        if (end < 0) {
+            return;
+        }
+        String[] fields = data.substring(1, end).split("\\|");
+        if (fields.length < 2) {
+            return;
+        }
+        long localAccept;
+        long hostAccept = 0;
+        long rebroadcast = 0;
+        try {
+            localAccept = Long.parseLong(fields[1]);
+            if (fields.length == 4) {
+                hostAccept = Long.parseLong(fields[2]);
+                rebroadcast = Long.parseLong(fields[3]);
+            }
+        } catch (NumberFormatException e) {
+            // a malformed header is not worth failing the update for
+            return;
+        }
+        histogram(byBoard, boardName).record(applied - localAccept);
+        histogram(byPeer, fields[0]).record(applied - localAccept);
+        if (fields.length == 4) {
+            histogram(byStage, "1 host accept").record(hostAccept - localAccept);
+            histogram(byStage, "2 rebroadcast").record(rebroadcast - hostAccept);
+            histogram(byStage, "3 remote apply").record(applied - rebroadcast);
+        }
+    }
+
+    /**
+     * @return the latency histograms since the last reset, in milliseconds
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder("stroke latency [ms]:");
+        append(sb, "stage", byStage);
+        append(sb, "board", byBoard);
+        append(sb, "peer", byPeer);
+        return sb.toString();
+    }
+
+    public void reset() {
+        byBoard.clear();
+        byPeer.clear();
+        byStage.clear();
+    }
+
+    private static void append(StringBuilder sb, String kind, Map<String, LatencyHistogram> histograms) {
+        new TreeMap<>(histograms).forEach((name, histogram)
+                -> sb.append(String.format("%n  %s %s: %s", kind, name, histogram.summary(1000))));
+    }
+
+    private static LatencyHistogram histogram(Map<String, LatencyHistogram> histograms, String name) {
+        return histograms.computeIfAbsent(name, (k) -> new LatencyHistogram());
+    }
+
+    private static long now() {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+    }
+}
@@ -0,0 +1,466 @@
+package pb.app;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.utils.EventCallback;
+
+/**
+ * Credit based flow control of board updates from the peer hosting a board to
+ * one subscriber. The subscriber grants credits with
+ * {@link WhiteboardApp#boardCredit} as it receives updates; each update sent
+ * uses up one credit. Without credits, updates wait in a bounded queue, and if
+ * the queue fills up the pending updates are dropped and the boards they were
+ * for are marked stale. A stale board is brought up to date with a single
+ * snapshot once credits arrive again, so a slow subscriber costs the host a
+ * bounded amount of memory and never holds up other subscribers.
+ *
+ * A subscriber that never grants credits is not flow controlled, so peers
+ * without this feature keep working as before.
+ *
+ * A snapshot is built outside the channel's lock, and updates for its board
+ * are held back meanwhile, so building it does not hold up updates for other
+ * boards. Updates older than a snapshot sent to the subscriber are dropped
+ * rather than sent after it.
+ *
+ * Each channel has a session token, given to the subscriber with
+ * {@link WhiteboardApp#boardSession}. When the connection drops the channel
+ * is detached rather than closed: updates keep queueing as if the subscriber
+ * had no credits. A subscriber that reconnects within {@link #resumeGrace}
+ * sends the token and the number of updates it received with
+ * {@link WhiteboardApp#boardResume}, and the new channel takes over the old
+ * one, replaying the updates that were lost with the old connection. Board
+ * data is not kept for replay, only the fact that it was sent; a subscriber
+ * that lost it is sent a fresh snapshot instead, as for a stale board.
+ *
+ * Trace headers, see {@link StrokeTracer}, are removed from updates unless
+ * the subscriber said it understands them with
+ * {@link WhiteboardApp#boardTraceHeaders}.
+ */
+public class SubscriberChannel {
+
+    private static Logger log = Logger.getLogger(SubscriberChannel.class.getName());
+
+    /**
+     * Credits a subscriber grants when it connects.
+     */
+    public static final int initialCredits = 64;
+
+    /**
+     * A subscriber grants credits in batches of this size.
+     */
+    public static final int creditBatch = 16;
+
+    /**
+     * Maximum number of updates queued for a subscriber before it is switched
+     * to catching up from a snapshot.
+     */
+    public static final int maxPending = 256;
+
+    /**
+     * Number of updates already sent that are kept to be replayed to a
+     * subscriber that resumes its session.
+     */
+    public static final int replayWindow = 256;
+
+    /**
+     * Most bytes of updates kept for replay, see {@link #replayWindow}.
+     */
+    public static final long replayBytes = 1024 * 1024;
+
+    /**
+     * Time a detached channel waits for its subscriber to resume, in
+     * milliseconds.
+     */
+    public static final long resumeGrace = 30000;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final class Update {
+
+        final String eventName;
+        final String boardName;
+        final String arg;
+
+        Update(String eventName, String boardName, String arg) {
+            this.eventName = eventName;
+            this.boardName = boardName;
+            this.arg = arg;
+        }
+    }
+
+    private final Endpoint endpoint;
+    private final Function<String, String> snapshot;
+    private String sessionToken;
+    private ArrayDeque<Update> pending = new ArrayDeque<>();
+    private Set<String> staleBoards = new LinkedHashSet<>();
+    private Set<String> requested = new HashSet<>();
+    private Map<String, List<Update>> snapshotting = new HashMap<>();
+    private ArrayDeque<Update> sentUpdates = new ArrayDeque<>();
+    private long sentBytes = 0;
+    private long sent = 0;
+    private boolean metered = false;
+    private boolean detached = false;
+    private boolean traceHeaders = false;
+    private long credits = 0;
+
+    /**
+     * @param endpoint the subscriber
+     * @param snapshot gives the current board data for a board name, in the
+     * format of {@link WhiteboardApp#boardData}, or null if the board no
+     * longer exists
+     */
+    public SubscriberChannel(Endpoint endpoint, Function<String, String> snapshot) {
+        this.endpoint = endpoint;
+        this.snapshot = snapshot;
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        this.sessionToken = sb.toString();
+    }
+
+    /**
+     * @return number of updates waiting for credits
+     */
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized String getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * The connection has dropped; hold on to updates until the subscriber
+     * resumes or the channel is discarded.
+     */
+    public synchronized void detach() {
+        detached = true;
+        metered = true;
+        credits = 0;
+    }
+
+    public synchronized boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * The subscriber understands trace headers, send them from now on.
+     */
+    public synchronized void acceptTraceHeaders() {
+        traceHeaders = true;
+    }
+
+    /**
+     * Take over the session of a detached channel whose subscriber has
+     * reconnected on this channel's connection, merged with what the
+     * subscriber did on this connection so far.
+     *
+     * @param old the detached channel
+     * @param received number of updates the subscriber received on the old
+     * connection
+     * @return false if updates the subscriber missed are no longer available,
+     * in which case nothing is taken over
+     */
+    public boolean resume(SubscriberChannel old, long received) {
+        synchronized (old) {
+            long firstKept = old.sent - old.sentUpdates.size();
+            if (!old.detached || received < firstKept || received > old.sent) {
+                return false;
+            }
+            synchronized (this) {
+                sessionToken = old.sessionToken;
+                long skip = received - firstKept;
+                // the subscriber may have asked for boards on this connection already
+                old.pending.addAll(pending);
+                old.staleBoards.addAll(staleBoards);
+                old.requested.addAll(requested);
+                pending = old.pending;
+                staleBoards = old.staleBoards;
+                requested = old.requested;
+                for (Update update : old.sentUpdates) {
+                    if (skip-- > 0 || staleBoards.contains(update.boardName)) {
+                        // the snapshot owed for a stale board includes the update
+                        continue;
+                    }
+                    if (update.arg == null) {
+                        // board data that was lost, send it again when credits allow
+                        staleBoards.add(update.boardName);
+                        pending.removeIf((queued) -> queued.boardName.equals(update.boardName));
+                    } else {
+                        emitUpdate(update);
+                    }
+                }
+                if (!pending.isEmpty() || !staleBoards.isEmpty()) {
+                    // the rest is sent as the subscriber grants credits
+                    metered = true;
+                }
+            }
+            old.pending = new ArrayDeque<>();
+            old.staleBoards = new LinkedHashSet<>();
+            old.requested = new HashSet<>();
+        }
+        return true;
+    }
+
+    /**
+     * Send board data the subscriber asked for right away, whatever its
+     * credits. Updates for the board still waiting to be sent are dropped if
+     * the data already includes them. The reply is paid for out of the
+     * credits the subscriber grants next, since it counts every update it
+     * receives.
+     *
+     * @param boardName peer:port:boardid the reply is for
+     * @param data in the format of {@link WhiteboardApp#boardData}
+     */
+    public synchronized void sendBoard(String boardName, String data) {
+        if (detached) {
+            return;
+        }
+        requested.add(boardName);
+        sendSnapshot(boardName, data);
+    }
+
+    /**
+     * Send board data again to the subscriber if it has asked for the board
+     * before, e.g. when the board is shared again.
+     *
+     * @param boardName
+     * @param data in the format of {@link WhiteboardApp#boardData}
+     */
+    public synchronized void pushBoard(String boardName, String data) {
+        if (!detached && requested.contains(boardName)) {
+            sendSnapshot(boardName, data);
+        }
+    }
+
+    private void sendSnapshot(String boardName, String data) {
+        long version = WhiteboardApp.getBoardVersion(data);
+        pending.removeIf((update) -> update.boardName.equals(boardName) && includedIn(update, version));
+        if (metered) {
+            credits--;
+        }
+        emitUpdate(new Update(WhiteboardApp.boardData, boardName, data));
+    }
+
+    /**
+     * @return true if the update is already part of a board at the given
+     * version
+     */
+    private static boolean includedIn(Update update, long version) {
+        switch (update.eventName) {
+        case WhiteboardApp.boardPathUpdate:
+        case WhiteboardApp.boardPathBatch:
+        case WhiteboardApp.boardUndoUpdate:
+        case WhiteboardApp.boardClearUpdate:
+        case WhiteboardApp.boardRestoreUpdate:
+            return WhiteboardApp.getBoardVersion(StrokeTracer.strip(update.arg)) < version;
+        case WhiteboardApp.boardData:
+            return WhiteboardApp.getBoardVersion(update.arg) <= version;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Emit an update, keeping it for replay. Board data is kept without its
+     * content, see {@link #resume}.
+     */
+    private void emitUpdate(Update update) {
+        endpoint.emit(update.eventName, traceHeaders ? update.arg : StrokeTracer.strip(update.arg));
+        sent++;
+        Update kept = update.eventName.equals(WhiteboardApp.boardData)
+                ? new Update(update.eventName, update.boardName, null) : update;
+        sentUpdates.add(kept);
+        sentBytes += bytes(kept);
+        while (sentUpdates.size() > replayWindow || sentBytes > replayBytes) {
+            sentBytes -= bytes(sentUpdates.poll());
+        }
+    }
+
+    private static long bytes(Update update) {
+        return update.arg == null ? 0 : 2L * update.arg.length();
+    }
+
+    /**
+     * Send a board update, or queue it if the subscriber has no credits.
+     *
+     * @param eventName
+     * @param boardName peer:port:boardid the update is for
+     * @param arg
+     */
+    public synchronized void send(String eventName, String boardName, String arg) {
+        send(new Update(eventName, boardName, arg));
+    }
+
+    private void send(Update update) {
+        String boardName = update.boardName;
+        List<Update> held = snapshotting.get(boardName);
+        if (held != null && !staleBoards.contains(boardName)) {
+            // sent after the snapshot being built, unless it includes it
+            if (held.size() < maxPending) {
+                held.add(update);
+            } else {
+                held.clear();
+                staleBoards.add(boardName);
+            }
+            return;
+        }
+        if (!metered) {
+            emitUpdate(update);
+            return;
+        }
+        if (staleBoards.contains(boardName)) {
+            // the snapshot that is owed will include this update
+            return;
+        }
+        if (credits > 0 && pending.isEmpty()) {
+            credits--;
+            emitUpdate(update);
+            return;
+        }
+        if (pending.size() >= maxPending) {
+            for (Update queued : pending) {
+                staleBoards.add(queued.boardName);
+            }
+            staleBoards.add(boardName);
+            pending.clear();
+            log.warning("subscriber " + endpoint.getOtherEndpointId()
+                    + " is too slow, catching up from snapshot: " + staleBoards);
+            return;
+        }
+        pending.add(update);
+    }
+
+    /**
+     * The subscriber granted more credits; send what has been held back. The
+     * snapshots owed for stale boards are built outside the channel's lock,
+     * so call this off the IO thread.
+     *
+     * @param granted
+     */
+    public void grant(long granted) {
+        List<String> owed = new ArrayList<>();
+        synchronized (this) {
+            if (detached) {
+                return;
+            }
+            metered = true;
+            credits += granted;
+            while (credits > 0 && !pending.isEmpty()) {
+                Update update = pending.poll();
+                credits--;
+                emitUpdate(update);
+            }
+            Iterator<String> it = staleBoards.iterator();
+            while (credits > 0 && it.hasNext()) {
+                String boardName = it.next();
+                it.remove();
+                if (requested.contains(boardName) && !snapshotting.containsKey(boardName)) {
+                    credits--;
+                    snapshotting.put(boardName, new ArrayList<>());
+                    owed.add(boardName);
+                }
+            }
+        }
+        for (String boardName : owed) {
+            String data = snapshot.apply(boardName);
+            synchronized (this) {
+                List<Update> held = snapshotting.remove(boardName);
+                if (detached) {
+                    staleBoards.add(boardName);
+                } else if (data == null) {
+                    requested.remove(boardName);
+                    emitUpdate(new Update(WhiteboardApp.boardDeleted, boardName, boardName));
+                } else {
+                    emitUpdate(new Update(WhiteboardApp.boardData, boardName, data));
+                    long version = WhiteboardApp.getBoardVersion(data);
+                    for (Update update : held) {
+                        if (!includedIn(update, version)) {
+                            send(update);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Grants credits to the host of a board as updates from it are received,
+     * and keeps what is needed to resume the session if the connection drops.
+     * Used on the subscriber side of a connection.
+     */
+    public static class CreditGranter {
+
+        private final Endpoint host;
+        private int received = 0;
+        private long totalReceived = 0;
+        private String sessionToken = null;
+
+        public CreditGranter(Endpoint host) {
+            this.host = host;
+        }
+
+        /**
+         * Grant the initial credits, turning on flow control at the host.
+         */
+        public void start() {
+            host.emit(WhiteboardApp.boardCredit, Integer.toString(initialCredits));
+        }
+
+        /**
+         * @return a callback that counts each update as it is read, on the IO
+         * thread, before handing it to the given callback, e.g. one that
+         * queues it for a worker. The count is what a resumed session starts
+         * from, so it must include updates still waiting to be handled.
+         */
+        public EventCallback counting(EventCallback callback) {
+            return (args) -> {
+                received();
+                callback.callback(args);
+            };
+        }
+
+        /**
+         * Call once for every update received from the host.
+         */
+        public synchronized void received() {
+            totalReceived++;
+            if (++received >= creditBatch) {
+                host.emit(WhiteboardApp.boardCredit, Integer.toString(received));
+                received = 0;
+            }
+        }
+
+        public synchronized void setSessionToken(String sessionToken) {
+            this.sessionToken = sessionToken;
+        }
+
+        /**
+         * @return the argument of {@link WhiteboardApp#boardResume} to resume
+         * this session on a new connection, or null if the host did not give
+         * a session token
+         */
+        public synchronized String resumeArgument() {
+            return sessionToken == null ? null : sessionToken + "%" + totalReceived;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package pb.app;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Raster cache for an unbounded, zoomable canvas. The canvas is cut into
+ * square tiles of a fixed pixel size at several levels of detail: at level 0
+ * one tile pixel is one canvas unit, at level n one tile pixel covers 2^n
+ * canvas units, so negative levels are finer and used when zoomed in.
+ *
+ * Tiles are rendered lazily, on the cache's own thread, the first time they
+ * are painted; until then the nearest coarser tile that is cached is painted
+ * in their place, so panning and zooming never wait for rendering. A tile is
+ * dropped only when a path overlapping it changes, and tiles are evicted
+ * least recently used first once the cache goes over its memory budget.
+ */
+public class TileCache {
+
+    /**
+     * Renders the paths of a board into a tile. Called on the cache's thread.
+     */
+    public interface TileRenderer {
+
+        /**
+         * @param g graphics of the tile, already transformed so that drawing
+         * in canvas coordinates lands on the tile
+         * @param area the part of the canvas covered by the tile, in canvas
+         * coordinates
+         */
+        void render(Graphics2D g, Rectangle area);
+    }
+
+    /**
+     * Default tile width and height, in pixels.
+     */
+    public static final int defaultTileSize = 256;
+
+    /**
+     * Finest level of detail, for zooming in up to 2^-minLevel times.
+     */
+    public static final int minLevel = -3;
+
+    /**
+     * Coarsest level of detail, for zooming out up to 2^maxLevel times.
+     */
+    public static final int maxLevel = 6;
+
+    private static final class TileKey {
+
+        final int level;
+        final int x;
+        final int y;
+
+        TileKey(int level, int x, int y) {
+            this.level = level;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return level == other.level && x == other.x && y == other.y;
+        }
+
+        @Override
+        public int hashCode() {
+            return (level * 31 + x) * 31 + y;
+        }
+    }
+
+    private final int tileSize;
+    private final long memoryBudget;
+    private final TileRenderer renderer;
+    private final Runnable tileReady;
+    private final ExecutorService renderThread;
+    private final LinkedHashMap<TileKey, BufferedImage> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Tiles queued or being rendered, false if a path overlapping the tile
+     * changed since, then it is rendered again rather than cached.
+     */
+    private final Map<TileKey, Boolean> rendering = new HashMap<>();
+    private long memoryUsed = 0;
+
+    /**
+     * @param tileSize width and height of a tile, in pixels
+     * @param memoryBudget most bytes of tile rasters to keep
+     * @param renderer
+     * @param tileReady called on the cache's thread when a tile has been
+     * rendered, e.g. to repaint the canvas
+     */
+    public TileCache(int tileSize, long memoryBudget, TileRenderer renderer, Runnable tileReady) {
+        this.tileSize = tileSize;
+        this.memoryBudget = memoryBudget;
+        this.renderer = renderer;
+        this.tileReady = tileReady;
+        renderThread = Executors.newSingleThreadExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "tile-renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Paint the visible part of the canvas with the tiles cached so far, and
+     * queue the missing ones for rendering.
+     *
+     * @param g graphics of the component, in screen pixels
+     * @param viewport the visible part of the canvas, in canvas coordinates
+     * @param zoom screen pixels per canvas unit
+     */
+    public void paint(Graphics2D g, Rectangle2D viewport, double zoom) {
+        int level = levelFor(zoom);
+        double span = span(level);
+        int minX = (int) Math.floor(viewport.getMinX() / span);
+        int minY = (int) Math.floor(viewport.getMinY() / span);
+        int maxX = (int) Math.floor(viewport.getMaxX() / span);
+        int maxY = (int) Math.floor(viewport.getMaxY() / span);
+        Graphics2D screen = (Graphics2D) g.create();
+        try {
+            screen.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            screen.scale(zoom, zoom);
+            screen.translate(-viewport.getMinX(), -viewport.getMinY());
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    paintTile(screen, new TileKey(level, x, y));
+                }
+            }
+        } finally {
+            screen.dispose();
+        }
+    }
+
+    /**
+     * Drop every cached tile, at every level, that overlaps the area. Call
+     * this when a path with these bounds is added or removed.
+     *
+     * @param area in canvas coordinates
+     */
+    public synchronized void invalidate(Rectangle area) {
+        Iterator<Map.Entry<TileKey, BufferedImage>> it = tiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<TileKey, BufferedImage> entry = it.next();
+            if (canvasArea(entry.getKey()).intersects(area)) {
+                memoryUsed -= bytes(entry.getValue());
+                it.remove();
+            }
+        }
+        for (Map.Entry<TileKey, Boolean> entry : rendering.entrySet()) {
+            if (canvasArea(entry.getKey()).intersects(area)) {
+                entry.setValue(false);
+            }
+        }
+    }
+
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    /**
+     * Stop rendering tiles.
+     */
+    public void shutdown() {
+        renderThread.shutdownNow();
+    }
+
+    /**
+     * @param zoom screen pixels per canvas unit
+     * @return the coarsest level whose tiles still have at least one pixel
+     * per screen pixel
+     */
+    int levelFor(double zoom) {
+        int level = minLevel;
+        while (level < maxLevel && zoom * Math.pow(2, level + 1) <= 1.0) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Paint a tile, or the nearest coarser cached tile covering it.
+     */
+    private void paintTile(Graphics2D screen, TileKey key) {
+        BufferedImage image = cached(key);
+        TileKey shown = key;
+        // a coarser tile, blurred, until this one is rendered
+        while (image == null && shown.level < maxLevel) {
+            shown = new TileKey(shown.level + 1, Math.floorDiv(shown.x, 2), Math.floorDiv(shown.y, 2));
+            image = peek(shown);
+        }
+        if (image == null) {
+            return;
+        }
+        double scale = Math.pow(2, shown.level);
+        AffineTransform place = new AffineTransform();
+        place.translate(shown.x * span(shown.level), shown.y * span(shown.level));
+        place.scale(scale, scale);
+        Graphics2D clipped = (Graphics2D) screen.create();
+        try {
+            Rectangle2D area = new Rectangle2D.Double(key.x * span(key.level), key.y * span(key.level),
+                    span(key.level), span(key.level));
+            clipped.clip(area);
+            clipped.drawImage(image, place, null);
+        } finally {
+            clipped.dispose();
+        }
+    }
+
+    /**
+     * @return the tile if it is cached, otherwise null and the tile is
+     * queued for rendering
+     */
+    private synchronized BufferedImage cached(TileKey key) {
+        BufferedImage image = tiles.get(key);
+        if (image == null && !rendering.containsKey(key)) {
+            rendering.put(key, true);
+            renderThread.execute(() -> render(key));
+        }
+        return image;
+    }
+
+    /**
+     * @return the tile if it is cached, without queueing it
+     */
+    private synchronized BufferedImage peek(TileKey key) {
+        return tiles.get(key);
+    }
+
+    /**
+     * Render a tile, outside the cache's monitor, and cache it unless a path
+     * overlapping it changed meanwhile.
+     */
+    private void render(TileKey key) {
+        BufferedImage image = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            Rectangle area = canvasArea(key);
+            double scale = Math.pow(2, -key.level);
+            g.scale(scale, scale);
+            g.translate(-area.x, -area.y);
+            renderer.render(g, area);
+        } finally {
+            g.dispose();
+        }
+        synchronized (this) {
+            // if it changed while being rendered, it is queued again when painted
+            if (rendering.remove(key)) {
+                tiles.put(key, image);
+                memoryUsed += bytes(image);
+                evict();
+            }
+        }
+        tileReady.run();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<TileKey, BufferedImage>> it = tiles.entrySet().iterator();
+        // iteration order is least recently used first
+        while (memoryUsed > memoryBudget && tiles.size() > 1 && it.hasNext()) {
+            memoryUsed -= bytes(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    /**
+     * @return canvas units covered by the side of a tile at the level
+     */
+    private double span(int level) {
+        return tileSize * Math.pow(2, level);
+    }
+
+    private Rectangle canvasArea(TileKey key) {
+        double span = span(key.level);
+        int x = (int) Math.floor(key.x * span);
+        int y = (int) Math.floor(key.y * span);
+        return new Rectangle(x, y, (int) Math.ceil((key.x + 1) * span) - x, (int) Math.ceil((key.y + 1) * span) - y);
+    }
+
+    private static long bytes(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+}
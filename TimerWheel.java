@@ -0,0 +1,121 @@
+package pb.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timer wheel: many short, coarse timeouts, e.g. one per connection,
+ * run from a single thread. Time is divided into ticks, and a task is put in
+ * the slot of the tick it is due in; delays longer than a turn of the wheel
+ * wait for later turns. Each tick only looks at one slot, so the cost does
+ * not grow with the number of connections, and there is no thread per
+ * connection.
+ *
+ * Tasks run on the wheel's thread and should be quick.
+ */
+public class TimerWheel {
+
+    private static Logger log = Logger.getLogger(TimerWheel.class.getName());
+
+    private static final class Task {
+
+        final Runnable runnable;
+        final long due;
+
+        Task(Runnable runnable, long due) {
+            this.runnable = runnable;
+            this.due = due;
+        }
+    }
+
+    private static TimerWheel shared = null;
+
+    private final long tickMillis;
+    private final List<ArrayDeque<Task>> slots;
+    private final ScheduledExecutorService thread;
+
+    /**
+     * Ticks so far. Guarded by the wheel's monitor together with the slots,
+     * so a task is never put in a slot that the current tick has already
+     * gone through.
+     */
+    private long tick = 0;
+
+    /**
+     * @param tickMillis resolution of the wheel, in milliseconds
+     * @param wheelSize number of slots, delays up to tickMillis * wheelSize
+     * take a single turn
+     */
+    public TimerWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        slots = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(new ArrayDeque<>());
+        }
+        thread = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread t = new Thread(runnable, "timer-wheel");
+            t.setDaemon(true);
+            return t;
+        });
+        thread.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a wheel with 100ms ticks shared by the whole process
+     */
+    public static synchronized TimerWheel getShared() {
+        if (shared == null) {
+            shared = new TimerWheel(100, 512);
+        }
+        return shared;
+    }
+
+    /**
+     * Run a task once after a delay, rounded up to a whole number of ticks.
+     *
+     * @param runnable
+     * @param delayMillis
+     */
+    public void schedule(Runnable runnable, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        synchronized (this) {
+            long due = tick + ticks;
+            slots.get((int) (due % slots.size())).add(new Task(runnable, due));
+        }
+    }
+
+    public void shutdown() {
+        thread.shutdownNow();
+    }
+
+    private void advance() {
+        List<Task> due = new ArrayList<>();
+        synchronized (this) {
+            long current = ++tick;
+            Iterator<Task> it = slots.get((int) (current % slots.size())).iterator();
+            while (it.hasNext()) {
+                Task task = it.next();
+                // tasks due on a later turn of the wheel stay in the slot
+                if (task.due <= current) {
+                    it.remove();
+                    due.add(task);
+                }
+            }
+        }
+        // run outside the lock, tasks may schedule more tasks
+        for (Task task : due) {
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "timer task failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package pb.utils;
+
+/**
+ * Token bucket rate limiter. Tokens are added continuously at a fixed rate up
+ * to a capacity, and each permitted action takes one, so bursts up to the
+ * capacity are allowed while the long run rate can't exceed the fill rate.
+ */
+public class TokenBucket {
+
+    private final double ratePerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond tokens added per second
+     * @param capacity most tokens held, the largest burst allowed; the bucket
+     * starts full
+     */
+    public TokenBucket(double ratePerSecond, double capacity) {
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @return true if a token was taken, false if the action should be
+     * rejected
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
@@ -0,0 +1,420 @@
+package pb.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pb.utils.ParallelCodec;
+import pb.utils.ScratchBuffers;
+
+/**
+ * Lock-free storage for the paths of a whiteboard. The paths and the version
+ * are held together in an immutable snapshot that is swapped atomically, so a
+ * modification only succeeds if the board is still at the version the caller
+ * expected. Readers, e.g. drawing and serialization, take a snapshot and never
+ * block writers.
+ *
+ * The paths are kept as a persistent stack (newest path first), which makes
+ * add, undo and clear O(1) regardless of the size of the board.
+ *
+ * Optionally the snapshot of every version is kept in a history. Snapshots
+ * share their stack nodes, so this costs one index entry per version rather
+ * than a copy of the board, and any version in the history can be found in
+ * O(log n) and its K paths listed in O(K), without replaying the operations
+ * that led to it.
+ */
+public class VersionedPaths implements BoardProtocol.Replica {
+
+    /**
+     * A node of the persistent stack of paths.
+     */
+    private static final class Node {
+
+        final WhiteboardPath path;
+        final Node next;
+        final int size;
+
+        Node(WhiteboardPath path, Node next) {
+            this.path = path;
+            this.next = next;
+            this.size = next == null ? 1 : next.size + 1;
+        }
+    }
+
+    /**
+     * An immutable view of the board at a given version.
+     */
+    public static final class Snapshot {
+
+        private final long version;
+        private final Node head;
+
+        private Snapshot(long version, Node head) {
+            this.version = version;
+            this.head = head;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return head == null ? 0 : head.size;
+        }
+
+        /**
+         * @return the last path added, or null if there are no paths
+         */
+        public WhiteboardPath lastPath() {
+            return head == null ? null : head.path;
+        }
+
+        /**
+         * @return the paths in the order they were added
+         */
+        public List<WhiteboardPath> getPaths() {
+            WhiteboardPath[] paths = new WhiteboardPath[size()];
+            int i = paths.length;
+            for (Node node = head; node != null; node = node.next) {
+                paths[--i] = node.path;
+            }
+            List<WhiteboardPath> list = new ArrayList<>(paths.length);
+            Collections.addAll(list, paths);
+            return Collections.unmodifiableList(list);
+        }
+
+        /**
+         * @param from position of the first path to list
+         * @return the paths from that position on, in the order they were
+         * added, found in time proportional to their number
+         */
+        public List<WhiteboardPath> getPaths(int from) {
+            WhiteboardPath[] paths = new WhiteboardPath[Math.max(0, size() - from)];
+            int i = paths.length;
+            for (Node node = head; i > 0; node = node.next) {
+                paths[--i] = node.path;
+            }
+            List<WhiteboardPath> list = new ArrayList<>(paths.length);
+            Collections.addAll(list, paths);
+            return Collections.unmodifiableList(list);
+        }
+
+        /**
+         * @param other another snapshot, e.g. an older one of the same board
+         * @return how many paths, from the bottom, the two snapshots have in
+         * common because one was made from the other, found in time
+         * proportional to the paths added and removed in between
+         */
+        public int commonPaths(Snapshot other) {
+            Node a = head;
+            Node b = other.head;
+            while (sizeOf(a) > sizeOf(b)) {
+                a = a.next;
+            }
+            while (sizeOf(b) > sizeOf(a)) {
+                b = b.next;
+            }
+            while (a != b) {
+                a = a.next;
+                b = b.next;
+            }
+            return sizeOf(a);
+        }
+
+        private static int sizeOf(Node node) {
+            return node == null ? 0 : node.size;
+        }
+
+        /**
+         * @return version%PATHS, the same form as used on the wire
+         */
+        @Override
+        public String toString() {
+            WhiteboardPath[] paths = new WhiteboardPath[size()];
+            int i = paths.length;
+            for (Node node = head; node != null; node = node.next) {
+                paths[--i] = node.path;
+            }
+            StringBuilder sb = ScratchBuffers.builder().append(version);
+            ParallelCodec.encode(sb, paths.length, (n) -> paths[n], '%');
+            return sb.toString();
+        }
+    }
+
+    private final AtomicReference<Snapshot> current;
+
+    /**
+     * Version of the board these paths are a copy of, set after each change
+     * made to both, see {@link WhiteboardReplica}. -1 until the copy is first
+     * made.
+     */
+    private volatile long boardVersion = -1;
+
+    /**
+     * Most versions kept in the history, 0 if there is no history. When the
+     * history is full the oldest half is dropped.
+     */
+    private final int historyLimit;
+
+    /**
+     * Versions in the history, ascending, and their snapshots.
+     */
+    private long[] historyVersions;
+    private Snapshot[] historySnapshots;
+    private int historySize = 0;
+
+    public VersionedPaths() {
+        this(0);
+    }
+
+    /**
+     * @param historyLimit most versions to keep in the history, 0 for none
+     */
+    public VersionedPaths(int historyLimit) {
+        this.historyLimit = historyLimit;
+        current = new AtomicReference<>(new Snapshot(0, null));
+        if (historyLimit > 0) {
+            historyVersions = new long[Math.min(historyLimit, 64)];
+            historySnapshots = new Snapshot[historyVersions.length];
+            record(current.get());
+        }
+    }
+
+    /**
+     * @return the current state of the board, safe to use from any thread
+     */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    @Override
+    public long getVersion() {
+        return current.get().version;
+    }
+
+    /**
+     * @return the version of the board these paths were last made a copy of,
+     * or -1 if they are not a copy of one
+     */
+    public long getBoardVersion() {
+        return boardVersion;
+    }
+
+    /**
+     * @param version of the board these paths are now a copy of
+     */
+    void setBoardVersion(long version) {
+        boardVersion = version;
+    }
+
+    /**
+     * Add a path if the board is still at the given version.
+     *
+     * @param path
+     * @param versionBeforeUpdate the version the caller saw before the update
+     * @return true if the path was added, false if the board has changed
+     */
+    public boolean addPath(WhiteboardPath path, long versionBeforeUpdate) {
+        Snapshot before = current.get();
+        if (before.version != versionBeforeUpdate) {
+            return false;
+        }
+        return update(before, new Snapshot(before.version + 1, new Node(path, before.head)));
+    }
+
+    /**
+     * Add several paths as a single update if the board is still at the given
+     * version. The version goes up by one per path, as if they had been added
+     * one at a time, but only the board with all of them is recorded.
+     *
+     * @param paths in the order they are to be added
+     * @param versionBeforeUpdate the version the caller saw before the update
+     * @return true if the paths were added, false if the board has changed
+     */
+    @Override
+    public boolean addPaths(List<WhiteboardPath> paths, long versionBeforeUpdate) {
+        Snapshot before = current.get();
+        if (before.version != versionBeforeUpdate) {
+            return false;
+        }
+        Node head = before.head;
+        for (WhiteboardPath path : paths) {
+            head = new Node(path, head);
+        }
+        return update(before, new Snapshot(before.version + paths.size(), head));
+    }
+
+    /**
+     * Remove the last path if the board is still at the given version.
+     *
+     * @param versionBeforeUpdate the version the caller saw before the update
+     * @return true if the undo was applied, false if the board has changed or
+     * there is nothing to undo
+     */
+    @Override
+    public boolean undo(long versionBeforeUpdate) {
+        Snapshot before = current.get();
+        if (before.version != versionBeforeUpdate || before.head == null) {
+            return false;
+        }
+        return update(before, new Snapshot(before.version + 1, before.head.next));
+    }
+
+    /**
+     * Remove all paths if the board is still at the given version.
+     *
+     * @param versionBeforeUpdate the version the caller saw before the update
+     * @return true if the clear was applied, false if the board has changed
+     */
+    @Override
+    public boolean clear(long versionBeforeUpdate) {
+        Snapshot before = current.get();
+        if (before.version != versionBeforeUpdate) {
+            return false;
+        }
+        return update(before, new Snapshot(before.version + 1, null));
+    }
+
+    /**
+     * Replace the whole board, e.g. when it is loaded from a peer.
+     *
+     * @param version
+     * @param paths in the order they were added
+     */
+    @Override
+    public void reset(long version, List<WhiteboardPath> paths) {
+        Node head = null;
+        for (WhiteboardPath path : paths) {
+            head = new Node(path, head);
+        }
+        Snapshot after = new Snapshot(version, head);
+        current.set(after);
+        if (historyLimit > 0) {
+            synchronized (this) {
+                // versions from the replaced board no longer apply
+                historySize = Math.min(historySize, indexAfter(version - 1));
+                record(after);
+            }
+        }
+    }
+
+    /**
+     * Replace all paths as a single update if the board is still at the given
+     * version, e.g. to restore an older version sent by another peer. The
+     * version goes up by one.
+     *
+     * @param paths in the order they were added
+     * @param versionBeforeUpdate the version the caller saw before the update
+     * @return true if the paths were replaced, false if the board has changed
+     */
+    @Override
+    public boolean replace(List<WhiteboardPath> paths, long versionBeforeUpdate) {
+        Snapshot before = current.get();
+        if (before.version != versionBeforeUpdate) {
+            return false;
+        }
+        Node head = null;
+        for (WhiteboardPath path : paths) {
+            head = new Node(path, head);
+        }
+        return update(before, new Snapshot(before.version + 1, head));
+    }
+
+    /**
+     * Make the paths of an older version current again, as a new version.
+     * The history is not rewritten, so the restore can itself be undone by
+     * restoring the version before it.
+     *
+     * @param version to go back to, see {@link #at}
+     * @param versionBeforeUpdate the version the caller saw before the update
+     * @return true if the board was restored, false if the version is not in
+     * the history or the board has changed
+     */
+    public boolean restore(long version, long versionBeforeUpdate) {
+        Snapshot target = at(version);
+        Snapshot before = current.get();
+        if (target == null || before.version != versionBeforeUpdate) {
+            return false;
+        }
+        return update(before, new Snapshot(before.version + 1, target.head));
+    }
+
+    /**
+     * @param version
+     * @return the board as it was at the given version, i.e. the last
+     * snapshot at or before it, or null if the version is older than the
+     * history
+     */
+    public synchronized Snapshot at(long version) {
+        int i = indexAfter(version) - 1;
+        return i < 0 ? null : historySnapshots[i];
+    }
+
+    /**
+     * @return the versions in the history, oldest first
+     */
+    public synchronized long[] getHistoryVersions() {
+        return historySize == 0 ? new long[0] : Arrays.copyOf(historyVersions, historySize);
+    }
+
+    private boolean update(Snapshot before, Snapshot after) {
+        if (!current.compareAndSet(before, after)) {
+            return false;
+        }
+        if (historyLimit > 0) {
+            synchronized (this) {
+                record(after);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the first history entry newer than the version
+     */
+    private int indexAfter(long version) {
+        int low = 0;
+        int high = historySize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (historyVersions[mid] <= version) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Add a snapshot to the history, in version order. Updates that lost a
+     * race to record can arrive slightly out of order.
+     */
+    private void record(Snapshot snapshot) {
+        if (historySize == historyLimit) {
+            int keep = historySize / 2;
+            System.arraycopy(historyVersions, historySize - keep, historyVersions, 0, keep);
+            System.arraycopy(historySnapshots, historySize - keep, historySnapshots, 0, keep);
+            Arrays.fill(historySnapshots, keep, historySize, null);
+            historySize = keep;
+        }
+        if (historySize == historyVersions.length) {
+            int capacity = Math.min(historyLimit, historySize * 2);
+            historyVersions = Arrays.copyOf(historyVersions, capacity);
+            historySnapshots = Arrays.copyOf(historySnapshots, capacity);
+        }
+        int i = indexAfter(snapshot.version);
+        System.arraycopy(historyVersions, i, historyVersions, i + 1, historySize - i);
+        System.arraycopy(historySnapshots, i, historySnapshots, i + 1, historySize - i);
+        historyVersions[i] = snapshot.version;
+        historySnapshots[i] = snapshot;
+        historySize++;
+    }
+
+    @Override
+    public String toString() {
+        return current.get().toString();
+    }
+}
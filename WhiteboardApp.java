@@ -1,6 +1,7 @@
 package pb.app;
 
 import pb.Client;
+import pb.HeartbeatMonitor;
 import pb.IndexServer;
 import pb.WhiteboardServer;
 import pb.managers.ClientManager;
@@ -8,29 +9,45 @@ import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.utils.EventCallback;
+import pb.utils.KeyedExecutor;
+import pb.utils.Metrics;
+import pb.utils.ParallelCodec;
+import pb.utils.RateLimitedLogger;
+import pb.utils.ScratchBuffers;
 import pb.utils.Utils;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Container;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.*;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Logger;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
@@ -44,6 +61,11 @@ public class WhiteboardApp {
 
     private static Logger log = Logger.getLogger(WhiteboardApp.class.getName());
 
+    /**
+     * Lazy, rate limited logging for the board event handlers.
+     */
+    private static RateLimitedLogger events = new RateLimitedLogger(log);
+
     /**
      * Emitted to another peer tos for the given board.
      * Argument must have format "host:port:boardid".
@@ -163,6 +185,90 @@ public class WhiteboardApp {
      */
     public static final String boardError = "BOARD_ERROR";
 
+    /**
+     * Emitted by a subscriber to the peer hosting its boards to allow that
+     * many more board updates to be sent to it. Argument is the number of
+     * updates, as a decimal string. See {@link SubscriberChannel}.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String boardCredit = "BOARD_CREDIT";
+
+    /**
+     * Emitted to another peer to add several paths to a board as one update,
+     * e.g. when importing or replaying a board. Argument must have format
+     * "host:port:boardid%version%PATH%PATH...". The numeric value of version
+     * must be equal to the version of the board before the paths are added;
+     * the board's version goes up by one for each path.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String boardPathBatch = "BOARD_PATH_BATCH";
+
+    /**
+     * Emitted to the peer hosting a board to put the board back to an older
+     * version in one step. Argument must have format
+     * "host:port:boardid%version%PATH%PATH...", the paths being those of the
+     * older version. The numeric value of version must be equal to the
+     * current version of the board; the board's version goes up by one.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String boardRestoreAccepted = "BOARD_RESTORE_ACCEPTED";
+
+    /**
+     * Emitted to another peer to indicate a restore has been accepted.
+     * Argument has the format of {@link #boardRestoreAccepted}, the numeric
+     * value of version being the version of the board before the restore.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String boardRestoreUpdate = "BOARD_RESTORE_UPDATE";
+
+    /**
+     * Emitted by the peer hosting boards to a subscriber to give it the token
+     * of its session. Argument has format "token%status", where status is
+     * "new" for a new session, "resumed" if a {@link #boardResume} was
+     * accepted, or "refused" if it was not.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String boardSession = "BOARD_SESSION";
+
+    /**
+     * Emitted by a subscriber that has reconnected to the peer hosting its
+     * boards, to carry on the session it had before the connection dropped.
+     * Argument has format "token%received", where received is the number of
+     * updates it received in that session. See {@link SubscriberChannel}.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String boardResume = "BOARD_RESUME";
+
+    /**
+     * Emitted by both ends of a connection between peers when it starts, to
+     * say that the peer understands the trace header of
+     * {@link StrokeTracer}. Traced arguments are only sent to a peer that has
+     * said so; older peers are sent the arguments without the header.
+     * Argument is ignored.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String boardTraceHeaders = "BOARD_TRACE_HEADERS";
+
+    /**
+     * Time to wait before reconnecting to a peer hosting boards after the
+     * connection dropped, in milliseconds.
+     */
+    public static final long reconnectDelay = 1000;
+
     /**
      * White board map from board name to board object
      */
@@ -170,6 +276,59 @@ public class WhiteboardApp {
     public static Map<String, Whiteboard> deletedList = new HashMap<>();
 
 
+    /**
+     * Counted down once the window is visible; until then the board is not
+     * drawn.
+     */
+    private final CountDownLatch uiBuilt = new CountDownLatch(1);
+
+    /**
+     * Connection to the whiteboard server, null while not connected. Share
+     * changes made through the GUI are sent on it.
+     */
+    private volatile Endpoint whiteboardServer = null;
+
+    /**
+     * Time since the JVM started at which each startup milestone was
+     * reached, in milliseconds.
+     */
+    private final Map<String, Long> startupMilestones = new ConcurrentHashMap<>();
+
+    /**
+     * Exit once the startup milestones have been logged, for measuring
+     * startup time, e.g. with and without a class data sharing archive.
+     */
+    private static final boolean startupBenchmark = Boolean.getBoolean("pb.startupBenchmark");
+
+    private static final String windowShown = "window shown";
+    private static final String firstSharingBoard = "first sharingBoard received";
+    private static final String firstBoardShown = "first board shown";
+
+    /**
+     * Most versions of a board kept for going back in its history.
+     */
+    public static final int historyLimit = Integer.getInteger("pb.historyVersions", 256);
+
+    /**
+     * History of each board hosted here or downloaded, by board name, see
+     * {@link #replicaOf}. Its current version is also what the board is
+     * serialized and drawn from, without locking.
+     */
+    Map<String, VersionedPaths> histories = new ConcurrentHashMap<>();
+
+    /**
+     * Spatial index of the boards in {@link #histories}, by board name, so
+     * drawing and finding the path under the mouse only look at the paths in
+     * the area concerned.
+     */
+    Map<String, PathGrid> pathGrids = new ConcurrentHashMap<>();
+
+    /**
+     * The part of the board shown by the draw area, null until the GUI is
+     * built. Set on the GUI thread.
+     */
+    volatile Rectangle viewport = null;
+
     /**
      * The currently selected white board
      */
@@ -184,26 +343,128 @@ public class WhiteboardApp {
     String whiteboardServerHost = null;
     PeerManager peerManager;
     String myHostPort;
-    public  Map<String, ClientManager>  peerConnectionInfo = new HashMap<>();
+    public  Map<String, ClientManager>  peerConnectionInfo = new ConcurrentHashMap<>();
+
+    /**
+     * Peers subscribed to the boards hosted here, by endpoint id.
+     */
+    Map<String, SubscriberChannel>  peerInformation = new ConcurrentHashMap<>();
+
+    /**
+     * Connection to the hosting peer, for each remote board.
+     */
+    Map<String, Endpoint>  boardHosts = new ConcurrentHashMap<>();
+
+    /**
+     * Subscriber side state of each remote board, see
+     * {@link BoardProtocol.Subscription}.
+     */
+    Map<String, BoardProtocol.Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Subscriber side of the session with each peer or relay we subscribe
+     * to, by "host:port".
+     */
+    Map<String, SubscriberChannel.CreditGranter> hostSessions = new ConcurrentHashMap<>();
+
+    /**
+     * Sessions to resume when reconnecting, {@link #boardResume} arguments by
+     * "host:port".
+     */
+    Map<String, String> resumeArguments = new ConcurrentHashMap<>();
+
+    /**
+     * Endpoint ids of detached subscriber channels, by session token.
+     */
+    Map<String, String> parkedSessions = new ConcurrentHashMap<>();
+
+    /**
+     * Detects dead peers and a dead whiteboard server without waiting for
+     * TCP.
+     */
+    HeartbeatMonitor heartbeats = new HeartbeatMonitor();
+
+    /**
+     * Runs the board event handlers off the IO threads, in order for each
+     * board and in parallel across boards. The number of threads is set by
+     * the system property pb.handlerThreads, 0 to run handlers on the IO
+     * threads.
+     */
+    KeyedExecutor handlers = new KeyedExecutor(
+            Integer.getInteger("pb.handlerThreads", KeyedExecutor.defaultThreads));
+
+    /**
+     * Which remote boards have been downloaded and which are only stubs.
+     */
+    RemoteBoardCache remoteBoards = new RemoteBoardCache();
+
+    /**
+     * The relay named by the whiteboard server for each remote board.
+     */
+    Map<String, String> boardRelays = new ConcurrentHashMap<>();
+
+    /**
+     * Subscribe to remote boards through their relay, when the server names
+     * one, instead of through the hosting peer. Boards can only be viewed
+     * through a relay. Off unless the system property pb.viewOnly is true.
+     */
+    boolean viewOnly = Boolean.getBoolean("pb.viewOnly");
+
+    /**
+     * Coalesces repaints caused by remote updates into at most one per frame.
+     */
+    RenderScheduler<Whiteboard> renderScheduler;
+
+    /**
+     * Simplifies strokes drawn locally before they are stored or sent, within
+     * the tolerance in pixels set by the system property pb.strokeTolerance,
+     * 1 by default. A tolerance of 0 keeps every mouse sample.
+     */
+    final StrokeSimplifier strokeSimplifier = new StrokeSimplifier(
+            Double.parseDouble(System.getProperty("pb.strokeTolerance", "1")));
+
+    /**
+     * Latency tracing of strokes sent between peers, off unless the system
+     * property pb.strokeTracing is true.
+     */
+    StrokeTracer strokeTracer = new StrokeTracer(Boolean.getBoolean("pb.strokeTracing"));
+
+    /**
+     * Time between logging the stroke latencies while tracing, in
+     * milliseconds, set by the system property pb.strokeLatencyDump.
+     */
+    public static final long strokeLatencyDump = Long.getLong("pb.strokeLatencyDump", 60000);
+
+    /**
+     * Connections to peers hosting boards that understand trace headers, see
+     * {@link #boardTraceHeaders}.
+     */
+    Set<Endpoint> traceHeaderHosts = ConcurrentHashMap.newKeySet();
 
 
     /*
 	 * GUI objects, you probably don't need to modify these things... you don't
 	 * need to modify these things... don't modify these things [LOTR reference?].
      */
-    JButton clearBtn, blackBtn, redBtn, createBoardBtn, deleteBoardBtn, undoBtn;
+    JButton clearBtn, blackBtn, redBtn, createBoardBtn, deleteBoardBtn, undoBtn, exportBoardBtn, importBoardBtn, historyBtn, zoomViewBtn;
     JCheckBox sharedCheckbox;
     DrawArea drawArea;
     JComboBox<String> boardComboBox;
     boolean modifyingComboBox = false;
     boolean modifyingCheckBox = false;
 
+    /**
+     * The sorted board names currently in the combo box, only accessed on
+     * the GUI thread.
+     */
+    ArrayList<String> comboBoxBoards = null;
+
     /**
      * Initialize the white board app.
      */
     public WhiteboardApp(int peerPort, String whiteboardServerHost,
             int whiteboardServerPort) {
-        whiteboards = new HashMap<>();
+        whiteboards = new ConcurrentHashMap<>();
         this.whiteboardServerPort = whiteboardServerPort;
         this.whiteboardServerHost = whiteboardServerHost;
 
@@ -214,6 +475,15 @@ public class WhiteboardApp {
 
 
         peerManager = new PeerManager(peerPort);
+        // updates queued for subscribers that are out of credits
+        Metrics.getInstance().gauge("subscribers.pending", () -> {
+            long pending = 0;
+            for (SubscriberChannel channel : peerInformation.values()) {
+                pending += channel.pendingCount();
+            }
+            return pending;
+        });
+        Metrics.getInstance().registerMBean("pb:type=Metrics,name=WhiteboardApp");
 //        try {
 //            attemptSocket = new Socket(InetAddress.getByName(whiteboardServerHost),whiteboardServerPort);
 //            Endpoint endpoint = new Endpoint(attemptSocket, peerManager);
@@ -230,14 +500,25 @@ public class WhiteboardApp {
 //            show(peerport);
 //        } else {
         peerport = whiteboardServerHost + ":" + peerPort;
-        show(peerport);
-
-        for (String key : whiteboards.keySet()) {
-            myHostPort = getIP(whiteboards.get(key).getName()) + ":" + getPort(whiteboards.get(key).getName());
+        renderScheduler = new RenderScheduler<>(this::prepareFrame, (frames) -> {
+            Whiteboard frame = selectedBoard == null ? null : frames.get(selectedBoard.getName());
+            if (frame != null && uiBuilt.getCount() == 0) {
+                drawArea.clear();
+                frame.draw(drawArea);
+            }
+        });
+        if (strokeTracer.isEnabled()) {
+            scheduleStrokeLatencyDump();
+        }
+        // build the GUI on the Swing thread while the connections below start up
+        SwingUtilities.invokeLater(() -> show(peerport));
+        if (startupBenchmark) {
+            // a server without shared boards never sends sharingBoard
+            Utils.getInstance().setTimeout((args) -> finishStartupBenchmark(), 10000);
         }
 
-
-        Map<String, Endpoint>  peerInformation = new HashMap<>();
+        // the host:port part of the names of the boards created here
+        myHostPort = peerport;
 
 
         connectToWhiteBoardServer(peerManager, peerPort);
@@ -245,117 +526,73 @@ public class WhiteboardApp {
         peerManager.on(PeerManager.peerStarted, (args) -> {
             Endpoint endpoint = (Endpoint) args[0];
             log.info("Connection from peer: " + endpoint.getOtherEndpointId());
-            peerInformation.put(endpoint.getOtherEndpointId(), endpoint);
+            SubscriberChannel channel = new SubscriberChannel(endpoint, this::boardSnapshot);
+            peerInformation.put(endpoint.getOtherEndpointId(), channel);
+            endpoint.emit(boardSession, channel.getSessionToken() + "%new");
+            endpoint.emit(boardTraceHeaders, "");
+            heartbeats.watch(endpoint, () -> subscriberGone(endpoint));
+
+            endpoint.on(boardCredit, (args2) -> {
+                long granted = Long.parseLong((String) args2[0]);
+                // owed snapshots are built while granting, keep them off the IO thread
+                handlers.execute(endpoint.getOtherEndpointId(), () -> channel.grant(granted));
+
+            }).on(boardTraceHeaders, (args2) -> {
+                channel.acceptTraceHeaders();
+
+            }).on(boardResume, (args2) -> {
+                String[] parts = ((String) args2[0]).split("%");
+                String oldId = parkedSessions.remove(parts[0]);
+                SubscriberChannel old = oldId == null ? null : peerInformation.get(oldId);
+                if (old != null && channel.resume(old, Long.parseLong(parts[1]))) {
+                    peerInformation.remove(oldId, old);
+                    events.info("onBoardResume", () -> oldId + " resumed as " + endpoint.getOtherEndpointId());
+                    endpoint.emit(boardSession, channel.getSessionToken() + "%resumed");
+                } else {
+                    events.info("onBoardResume", () -> "refused for " + endpoint.getOtherEndpointId());
+                    endpoint.emit(boardSession, channel.getSessionToken() + "%refused");
+                }
 
-            endpoint.on(getBoardData, (args2) -> {
+            }).on(getBoardData, onBoard((args2) -> {
                 String RequestedBoard = getBoardName((String) args2[0]);
-                log.info("onGetBoard: " + RequestedBoard);
-                log.info("onBoardListen: " + RequestedBoard);
-                endpoint.emit(boardData, whiteboards.get(RequestedBoard).toString());
-
-            }).on(boardUndoAccepted, (args2) -> {
-                String newBoardData = (String) args2[0];
-                if (getBoardVersion(whiteboards.get(getBoardName(newBoardData)).toString()) == getBoardVersion(newBoardData)) {
-                    log.info("onBoardUndo" + getBoardName(whiteboards.get(getBoardName(newBoardData)).toString()) + "%" + getBoardVersion(whiteboards.get(getBoardName(newBoardData)).toString()));
-                    whiteboards.get(getBoardName(newBoardData)).undo(whiteboards.get(getBoardName(newBoardData)).getVersion());
-                    updateComboBox(false ? getBoardName(newBoardData) : null);
-                    for (String key : peerInformation.keySet()) {
-                        if (!key.equals(endpoint.getOtherEndpointId())) {
-                            peerInformation.get(key).emit(boardUndoUpdate, newBoardData);
-                        }
-                    }
+                events.info("onGetBoard", () -> RequestedBoard);
+                String data = boardSnapshot(RequestedBoard);
+                if (data != null) {
+                    channel.sendBoard(RequestedBoard, data);
                 }
 
-            }).on(boardClearAccepted, (args2) -> {
-                String newBoardData = (String) args2[0];
-                if (getBoardVersion(whiteboards.get(getBoardName(newBoardData)).toString()) == getBoardVersion(newBoardData)) {
-                    log.info("Clear board: " + getBoardName(newBoardData));
-                    whiteboards.get(getBoardName(newBoardData)).clear(whiteboards.get(getBoardName(newBoardData)).getVersion());
-                    updateComboBox(false ? getBoardName(newBoardData) : null);
-                    for (String key : peerInformation.keySet()) {
-                        if (!key.equals(endpoint.getOtherEndpointId())) {
-                            peerInformation.get(key).emit(boardClearUpdate,newBoardData);
-                        }
-                    }
-                }
+            })).on(boardUndoAccepted, onBoard((args2) -> {
+                changeRequested(boardUndoAccepted, (String) args2[0]);
 
-            }).on(boardPathAccepted, (args2) -> {
-                String newBoardData = (String) args2[0];
-                WhiteboardPath newWhiteboardPath = new WhiteboardPath(getBoardNewPath(newBoardData));
-                if (getBoardVersion(whiteboards.get(getBoardName(newBoardData)).toString()) != getBoardVersion(newBoardData)) {
-                    log.info("onBoardPath: " + getBoardNewPath(newBoardData));
-                    whiteboards.get(getBoardName(newBoardData)).addPath(newWhiteboardPath, whiteboards.get(getBoardName(newBoardData)).getVersion());
-                    updateComboBox(false ? getBoardName(newBoardData) : null);
+            })).on(boardClearAccepted, onBoard((args2) -> {
+                changeRequested(boardClearAccepted, (String) args2[0]);
 
-                    for (String key : peerInformation.keySet()) {
-                        if (!key.equals(endpoint.getOtherEndpointId()) ) {
-                            peerInformation.get(key).emit(boardPathUpdate, newBoardData);
-                        }
-                    }
-                }
+            })).on(boardPathAccepted, onBoard((args2) -> {
+                changeRequested(boardPathAccepted, strokeTracer.stamp((String) args2[0]));
 
-            }).on(boardDeleted, (args2) -> {
+            })).on(boardPathBatch, onBoard((args2) -> {
+                changeRequested(boardPathBatch, (String) args2[0]);
+
+            })).on(boardRestoreAccepted, onBoard((args2) -> {
+                changeRequested(boardRestoreAccepted, (String) args2[0]);
+
+            })).on(boardDeleted, onBoard((args2) -> {
                 String newBoardData = (String) args2[0];
                 if (whiteboards.containsKey(getBoardName(newBoardData))) {
-                    log.info("Delete board: " + getBoardName(newBoardData));
+                    events.info("onBoardDeleted", () -> getBoardName(newBoardData));
                     whiteboards.remove(getBoardName(newBoardData));
+                    forgetHistory(getBoardName(newBoardData));
                     updateComboBox(false ? getBoardName(newBoardData) : null);
                 }
-                for (String key : peerInformation.keySet()) {
-                    if (!key.equals(endpoint.getOtherEndpointId()) ) {
-                        peerInformation.get(key).emit(boardDeleted, newBoardData);
-                    }
-                }
-            });
-
-            undoBtn.addActionListener(new ActionListener() {
-                public void actionPerformed(ActionEvent e) {
-                    log.info("onBoardUndo" + getBoardName(selectedBoard.toString()) + "%" + getBoardVersion(selectedBoard.toString()));
-                    endpoint.emit(boardUndoUpdate, selectedBoard.toString());
-                }
-            });
-
-            clearBtn.addActionListener(new ActionListener() {
-                public void actionPerformed(ActionEvent e) {
-                    log.info("Clear Board: " + getBoardName(selectedBoard.toString()));
-                    endpoint.emit(boardClearUpdate, selectedBoard.toString());
-                }
-            });
-
-            drawArea.addMouseListener(new MouseAdapter() {
-                public void mouseReleased(MouseEvent e) {
-                    if (selectedBoard.isShared()) {
-                        endpoint.emit(boardPathUpdate, selectedBoard.toString());
-                    }
-                }
-            });
-
-            deleteBoardBtn.addActionListener(new ActionListener() {
-                public void actionPerformed(ActionEvent e) {
-                    log.info("Delete Board: " + getBoardName(selectedBoard.toString()));
-                    endpoint.emit(boardDeleted, selectedBoard.toString());
-                }
-            });
-
-            sharedCheckbox.addItemListener(new ItemListener() {
-                public void itemStateChanged(ItemEvent e) {
-                    if (!modifyingCheckBox) {
-                        setShare(e.getStateChange() == 1);
-                        if (e.getStateChange() == ItemEvent.SELECTED) {
-                            endpoint.emit(boardData, selectedBoard.toString());
-                        }
-//                        if (e.getStateChange() == ItemEvent.DESELECTED) {
-//                            log.info("我取消share给已经连接的peer");
-//                            endpoint.emit(WhiteboardServer.unshareBoard, selectedBoard.getName());
-//                        }
-                    }
-                }
-            });
+                forwardToSubscribers(boardDeleted, getBoardName(newBoardData), newBoardData, endpoint.getOtherEndpointId());
+            }));
 
         }).on(PeerManager.peerStopped, (args) -> {
             Endpoint endpoint = (Endpoint) args[0];
             log.info("peer connection stopped.");
             log.info("Disconnected from peer: " + endpoint.getOtherEndpointId());
+            heartbeats.unwatch(endpoint);
+            subscriberGone(endpoint);
         }).on(PeerManager.peerError, (args) -> {
             Endpoint endpoint = (Endpoint) args[0];
             log.info("There is an error from: " + endpoint.getOtherEndpointId());
@@ -379,58 +616,104 @@ public class WhiteboardApp {
             clientManager.on(PeerManager.peerStarted, (args) -> {
                 Endpoint endpoint = (Endpoint) args[0];
                 log.info("Connecting to whiteboard server");
-                // Emitting information to the whiteboard server when I modify the shared button.
-
-                sharedCheckbox.addItemListener(new ItemListener() {
-                    public void itemStateChanged(ItemEvent e) {
-                        if (!modifyingCheckBox) {
-                            setShare(e.getStateChange() == 1);
-                            if (e.getStateChange() == ItemEvent.SELECTED) {
-                                endpoint.emit(WhiteboardServer.shareBoard, selectedBoard.getName());
-                            }
-                            if (e.getStateChange() == ItemEvent.DESELECTED) {
-                                endpoint.emit(WhiteboardServer.unshareBoard, selectedBoard.getName());
-                            }
-                        }
-                    }
-                });
-
+                heartbeats.watch(endpoint, () -> log.warning("Whiteboard server is not responding"));
                 // Listen for the information of sharing board from the whiteboard server.
                 endpoint.on(WhiteboardServer.sharingBoard, (args2) -> {
                     String sharingBoardName = (String) args2[0];
-                    log.info("onSharingBoard: " + sharingBoardName);
-                    String connectPeerInformation = getIP(sharingBoardName) + ":" + getPort(sharingBoardName);
-
+                    events.info("onSharingBoard", () -> sharingBoardName);
+                    boolean first = startupMilestone(firstSharingBoard);
+                    String connectPeerInformation = boardSource(sharingBoardName);
+                    // only the name is known until the user selects the board
+                    addRemoteStub(sharingBoardName);
+                    if (first && startupBenchmark) {
+                        // time fetching and drawing the board as if the user selected it
+                        SwingUtilities.invokeLater(() -> boardComboBox.setSelectedItem(sharingBoardName));
+                    }
 
                     if (peerConnectionInfo.containsKey(connectPeerInformation + myHostPort) || peerConnectionInfo.containsKey(myHostPort + connectPeerInformation)) {
-
+                        for (Map.Entry<String, Endpoint> entry : boardHosts.entrySet()) {
+                            if (boardSource(entry.getKey()).equals(connectPeerInformation)) {
+                                boardHosts.put(sharingBoardName, entry.getValue());
+                                break;
+                            }
+                        }
                     } else {
                         getBoardFromPeer(peerManager, sharingBoardName);
                     }
 
+                }).on(WhiteboardServer.ownerLost, (args2) -> {
+                    String lostBoardName = (String) args2[0];
+                    Whiteboard board = whiteboards.get(lostBoardName);
+                    // offer to take over the board if we hold a copy
+                    if (board != null && remoteBoards.isMaterialized(lostBoardName)) {
+                        endpoint.emit(WhiteboardServer.holdingBoard,
+                                lostBoardName + "%" + new WhiteboardReplica(board).getVersion() + "%" + peerport);
+                    }
+
+                }).on(WhiteboardServer.boardMoved, (args2) -> {
+                    String[] parts = ((String) args2[0]).split("%");
+                    events.info("onBoardMoved", () -> parts[0] + " -> " + parts[1]);
+                    moveBoard(parts[0], parts[1], Long.parseLong(parts[2]), endpoint);
+
+                }).on(WhiteboardServer.relayingBoard, (args2) -> {
+                    String[] parts = ((String) args2[0]).split("%", 2);
+                    boardRelays.put(parts[1], parts[0]);
+
                 }).on(WhiteboardServer.unsharingBoard, (args2) -> {
                     String sharingBoardName = (String) args2[0];
-                    log.info("unSharingBoard: " + sharingBoardName);
+                    events.info("onUnsharingBoard", () -> sharingBoardName);
                     whiteboards.remove(sharingBoardName);
+                    forgetHistory(sharingBoardName);
+                    remoteBoards.remove(sharingBoardName);
+                    subscriptions.remove(sharingBoardName);
+                    boardRelays.remove(sharingBoardName);
                     updateComboBox(false ? sharingBoardName : null);
 
+                }).on(WhiteboardServer.error, (args2) -> {
+                    // e.g. a share refused by the server's admission control
+                    String message = (String) args2[0];
+                    events.warning("onServerError", () -> message);
+
                 }).on(WhiteboardServer.disconnectPeer, (args2) -> {
                     String disconnectBoardName = (String) args2[0];
                     String disconnectPeerName = getIP(disconnectBoardName) + ":" + getPort(disconnectBoardName);
 
                     whiteboards.remove(disconnectBoardName);
+
+                    forgetHistory(disconnectBoardName);
+                    remoteBoards.remove(disconnectBoardName);
+                    subscriptions.remove(disconnectBoardName);
+                    boardRelays.remove(disconnectBoardName);
                     updateComboBox(false ? disconnectBoardName : null);
 
-                    if (peerConnectionInfo.containsKey(disconnectPeerName + myHostPort)) {
-                        peerConnectionInfo.get(disconnectPeerName + myHostPort).shutdown();
-                        peerConnectionInfo.remove(disconnectPeerName + myHostPort);
+                    // removed first so the connection is not resumed when it stops
+                    ClientManager peerConnection = peerConnectionInfo.remove(disconnectPeerName + myHostPort);
+                    if (peerConnection != null) {
+                        peerConnection.shutdown();
                     }
 
                 });
 
+                // the address boards we take over are named after
+                endpoint.emit(WhiteboardServer.peerAddress, peerport);
+
+                // a server restarted from its catalog holds our shared boards until we share them again
+                for (Whiteboard board : whiteboards.values()) {
+                    if (!board.isRemote() && board.isShared()) {
+                        endpoint.emit(WhiteboardServer.shareBoard, board.getName());
+                    }
+                }
+
+                // share changes made through the GUI go to this connection from now on
+                whiteboardServer = endpoint;
+
             }).on(PeerManager.peerStopped, (args) -> {
                 Endpoint endpoint = (Endpoint) args[0];
                 log.info("Disconnected from white board server.");
+                if (whiteboardServer == endpoint) {
+                    whiteboardServer = null;
+                }
+                heartbeats.unwatch(endpoint);
             }).on(PeerManager.peerError, (args) -> {
                 Endpoint endpoint = (Endpoint) args[0];
                 log.info("Error from white board server.");
@@ -452,11 +735,10 @@ public class WhiteboardApp {
 
     public void getBoardFromPeer(PeerManager peerManager, String sharingBoardName) {
         ClientManager clientManager = null;
-
+        String connectPeerInformation = boardSource(sharingBoardName);
 
         try {
-            clientManager = peerManager.connect(getPort(sharingBoardName), getIP(sharingBoardName));
-            String connectPeerInformation = getIP(sharingBoardName) + ":" + getPort(sharingBoardName);
+            clientManager = peerManager.connect(getPort(connectPeerInformation), getIP(connectPeerInformation));
             peerConnectionInfo.put(connectPeerInformation + myHostPort, clientManager);
             clientManager.start();
         } catch (InterruptedException e) {
@@ -470,89 +752,113 @@ public class WhiteboardApp {
         clientManager.on(PeerManager.peerStarted, (args) -> {
             Endpoint endpoint = (Endpoint) args[0];
 
-            if (!whiteboards.containsKey(sharingBoardName)) {
-                endpoint.emit(getBoardData, sharingBoardName);
+            SubscriberChannel.CreditGranter credits = new SubscriberChannel.CreditGranter(endpoint);
+            String resume = resumeArguments.remove(connectPeerInformation);
+            if (resume != null) {
+                endpoint.emit(boardResume, resume);
+            }
+            credits.start();
+            endpoint.emit(boardTraceHeaders, "");
+            hostSessions.put(connectPeerInformation, credits);
+            heartbeats.watch(endpoint, () -> {
+                // closing the connection goes through peerStopped, which tries to resume
+                ClientManager connection = peerConnectionInfo.get(connectPeerInformation + myHostPort);
+                if (connection != null) {
+                    connection.shutdown();
+                }
+            });
+            // entries may be removed while we iterate, so don't look them up again
+            for (Map.Entry<String, Whiteboard> entry : whiteboards.entrySet()) {
+                if (entry.getValue().isRemote() && boardSource(entry.getKey()).equals(connectPeerInformation)) {
+                    boardHosts.put(entry.getKey(), endpoint);
+                }
+            }
+            boardHosts.put(sharingBoardName, endpoint);
+            // the board may have been selected before the connection was up
+            if (selectedBoard != null && selectedBoard.isRemote()
+                    && boardSource(selectedBoard.getName()).equals(connectPeerInformation)) {
+                requestRemoteBoard(selectedBoard.getName());
             }
 
-            endpoint.on(boardData, (args2) -> {
+            endpoint.on(boardTraceHeaders, (args2) -> {
+                traceHeaderHosts.add(endpoint);
+
+            }).on(boardSession, (args2) -> {
+                String[] parts = ((String) args2[0]).split("%");
+                credits.setSessionToken(parts[0]);
+                if (parts[1].equals("refused")) {
+                    // updates were missed, downloaded boards have to be fetched again
+                    for (String key : whiteboards.keySet()) {
+                        if (boardSource(key).equals(connectPeerInformation)) {
+                            remoteBoards.remove(key);
+                        }
+                    }
+                    if (selectedBoard != null && selectedBoard.isRemote()) {
+                        requestRemoteBoard(selectedBoard.getName());
+                    }
+                }
+            }).on(boardData, credits.counting(onBoard((args2) -> {
                 String boardData = (String) args2[0];
-                log.info("onBoardData: " + boardData);
+                BoardProtocol.Subscription subscription = subscriptions.get(getBoardName(boardData));
+                if (subscription == null || !subscription.isRequested()) {
+                    events.info("onBoardData", () -> "ignored, not asked for: " + getBoardName(boardData));
+                    return;
+                }
+                events.info("onBoardData", () -> boardData);
                 Whiteboard newWhiteBoard = new Whiteboard(getBoardName(boardData), true);
                 newWhiteBoard.whiteboardFromString(getBoardName(boardData), getBoardData(boardData));
                 newWhiteBoard.setShared(true);
-                addBoard(newWhiteBoard, false);
-            }).on(boardUndoUpdate, (args2) -> {
-                String newBoardData = (String) args2[0];
-
-                if (getBoardVersion(whiteboards.get(getBoardName(newBoardData)).toString()) == getBoardVersion(newBoardData)) {
-                    log.info("onBoardUndo" + getBoardName(whiteboards.get(getBoardName(newBoardData)).toString()) + "%" + getBoardVersion(whiteboards.get(getBoardName(newBoardData)).toString()));
-                    whiteboards.get(getBoardName(newBoardData)).undo(whiteboards.get(getBoardName(newBoardData)).getVersion());
-                    updateComboBox(false ? getBoardName(newBoardData) : null);
+                materializeRemoteBoard(newWhiteBoard, 2L * boardData.length());
+                // runs after the board has been put on screen
+                SwingUtilities.invokeLater(() -> startupMilestone(firstBoardShown));
+                if (!subscription.loaded(newWhiteBoard.getVersion())) {
+                    fetchBoard(endpoint, newWhiteBoard.getName());
                 }
+            }))).on(boardUndoUpdate, credits.counting(onBoard((args2) -> {
+                updateFromHost(endpoint, boardUndoUpdate, (String) args2[0]);
 
-            }).on(boardPathUpdate, (args2) -> {
-                String newBoardData = (String) args2[0];
-                WhiteboardPath newWhiteboardPath = new WhiteboardPath(getBoardNewPath(newBoardData));
+            }))).on(boardPathUpdate, credits.counting(onBoard((args2) -> {
+                updateFromHost(endpoint, boardPathUpdate, (String) args2[0]);
 
-                if (whiteboards.containsKey(getBoardName(newBoardData))) {
-                    if (getBoardVersion(whiteboards.get(getBoardName(newBoardData)).toString()) != getBoardVersion(newBoardData)) {
-                        log.info("onBoardPath" + getBoardNewPath(newBoardData));
-                        whiteboards.get(getBoardName(newBoardData)).addPath(newWhiteboardPath, whiteboards.get(getBoardName(newBoardData)).getVersion());
-                        updateComboBox(false ? getBoardName(newBoardData) : null);
-                    }
-                }
+            }))).on(boardPathBatch, credits.counting(onBoard((args2) -> {
+                updateFromHost(endpoint, boardPathBatch, (String) args2[0]);
 
+            }))).on(boardClearUpdate, credits.counting(onBoard((args2) -> {
+                updateFromHost(endpoint, boardClearUpdate, (String) args2[0]);
 
-            }).on(boardClearUpdate, (args2) -> {
-                String newBoardData = (String) args2[0];
-                if (getBoardVersion(whiteboards.get(getBoardName(newBoardData)).toString()) == getBoardVersion(newBoardData)) {
-                    log.info("Clear board: " + getBoardName(newBoardData));
-                    whiteboards.get(getBoardName(newBoardData)).clear(whiteboards.get(getBoardName(newBoardData)).getVersion());
-                    updateComboBox(false ? getBoardName(newBoardData) : null);
-                }
-            }).on(boardDeleted, (args2) -> {
+            }))).on(boardRestoreUpdate, credits.counting(onBoard((args2) -> {
+                updateFromHost(endpoint, boardRestoreUpdate, (String) args2[0]);
+
+            }))).on(boardDeleted, credits.counting(onBoard((args2) -> {
                 String newBoardData = (String) args2[0];
                 if (whiteboards.containsKey(getBoardName(newBoardData))) {
-                    log.info("Delete board: " + getBoardName(newBoardData));
+                    events.info("onBoardDeleted", () -> getBoardName(newBoardData));
                     whiteboards.remove(getBoardName(newBoardData));
+                    forgetHistory(getBoardName(newBoardData));
+                    remoteBoards.remove(getBoardName(newBoardData));
+                    subscriptions.remove(getBoardName(newBoardData));
                     updateComboBox(false ? getBoardName(newBoardData) : null);
                 }
 
-
-            });
-
-            undoBtn.addActionListener(new ActionListener() {
-                public void actionPerformed(ActionEvent e) {
-                    log.info("onBoardUndo" + getBoardName(selectedBoard.toString()) + "%" + getBoardVersion(selectedBoard.toString()));
-                    endpoint.emit(boardUndoAccepted, selectedBoard.toString());
-                }
-            });
-
-            clearBtn.addActionListener(new ActionListener() {
-                public void actionPerformed(ActionEvent e) {
-                    log.info("Clear Board: " + getBoardName(selectedBoard.toString()));
-                    endpoint.emit(boardClearAccepted, selectedBoard.toString());
-                }
-            });
-
-            deleteBoardBtn.addActionListener(new ActionListener() {
-                public void actionPerformed(ActionEvent e) {
-                    log.info("Delete Board: " + getBoardName(selectedBoard.toString()));
-                    endpoint.emit(boardDeleted, selectedBoard.toString());
-                }
-            });
-
-            drawArea.addMouseListener(new MouseAdapter() {
-                public void mouseReleased(MouseEvent e) {
-                if (selectedBoard.isShared()) {
-                    endpoint.emit(boardPathAccepted, selectedBoard.toString());
-                }
-                }
+            }))).on(boardError, (args2) -> {
+                String message = (String) args2[0];
+                events.warning("onBoardError", () -> message);
             });
 
-
         }).on(peerManager.peerStopped, (args) -> {
             Endpoint endpoint = (Endpoint) args[0];
+            heartbeats.unwatch(endpoint);
+            traceHeaderHosts.remove(endpoint);
+            boardHosts.values().removeIf((host) -> host == endpoint);
+            SubscriberChannel.CreditGranter credits = hostSessions.remove(connectPeerInformation);
+            // still listed if the connection was not shut down on purpose
+            if (peerConnectionInfo.remove(connectPeerInformation + myHostPort) != null) {
+                String resume = credits == null ? null : credits.resumeArgument();
+                if (resume != null) {
+                    resumeArguments.put(connectPeerInformation, resume);
+                }
+                Utils.getInstance().setTimeout((args2) -> reconnect(connectPeerInformation), reconnectDelay);
+            }
 //            log.info("Disconnected from peer: " + endpoint.getOtherEndpointId());
 //            log.info("peer connection stopped.");
         });
@@ -574,8 +880,8 @@ public class WhiteboardApp {
      * @return peer:port:boardid
      */
     public static String getBoardName(String data) {
-        String[] parts = data.split("%", 2);
-        return parts[0];
+        int end = data.indexOf('%');
+        return end < 0 ? data : data.substring(0, end);
     }
 
     /**
@@ -584,8 +890,9 @@ public class WhiteboardApp {
      * @return boardid%version%PATHS
      */
     public static String getBoardIdAndData(String data) {
-        String[] parts = data.split(":");
-        return parts[2];
+        int start = data.indexOf(':', data.indexOf(':') + 1) + 1;
+        int end = data.indexOf(':', start);
+        return data.substring(start, end < 0 ? data.length() : end);
     }
 
     /**
@@ -594,8 +901,7 @@ public class WhiteboardApp {
      * @return version%PATHS
      */
     public static String getBoardData(String data) {
-        String[] parts = data.split("%", 2);
-        return parts[1];
+        return data.substring(data.indexOf('%') + 1);
     }
 
     /**
@@ -604,8 +910,9 @@ public class WhiteboardApp {
      * @return version
      */
     public static long getBoardVersion(String data) {
-        String[] parts = data.split("%", 3);
-        return Long.parseLong(parts[1]);
+        int start = data.indexOf('%') + 1;
+        int end = data.indexOf('%', start);
+        return parseLong(data, start, end < 0 ? data.length() : end);
     }
 
     /**
@@ -614,14 +921,23 @@ public class WhiteboardApp {
      * @return PATHS
      */
     public static String getBoardPaths(String data) {
-        String[] parts = data.split("%", 3);
-        return parts[2];
+        int second = data.indexOf('%', data.indexOf('%') + 1);
+        return second < 0 ? "" : data.substring(second + 1);
     }
 
+    /**
+     *
+     * @param data = peer:port:boardid%version%PATHS
+     * @return the last of PATHS
+     */
     public static String getBoardNewPath(String data) {
-        String[] paths = data.split("%", 3);
-        String[] lastPath = paths[2].split("%");
-        return lastPath[lastPath.length - 1];
+        int second = data.indexOf('%', data.indexOf('%') + 1);
+        int end = data.length();
+        while (end > second + 1 && data.charAt(end - 1) == '%') {
+            end--;
+        }
+        int start = data.lastIndexOf('%', end - 1) + 1;
+        return start <= second ? "" : data.substring(start, end);
     }
 
     /**
@@ -630,18 +946,49 @@ public class WhiteboardApp {
      * @return peer
      */
     public static String getIP(String data) {
-        String[] parts = data.split(":");
-        return parts[0];
+        int end = data.indexOf(':');
+        return end < 0 ? data : data.substring(0, end);
     }
 
     /**
      *
      * @param data = peer:port:boardid%version%PATHS
      * @return port
+     * @throws NumberFormatException if the port is not a number from 0 to
+     * 65535
      */
     public static int getPort(String data) {
-        String[] parts = data.split(":");
-        return Integer.parseInt(parts[1]);
+        int start = data.indexOf(':') + 1;
+        int end = data.indexOf(':', start);
+        long port = parseLong(data, start, end < 0 ? data.length() : end);
+        if (port < 0 || port > 65535) {
+            throw new NumberFormatException("port out of range: " + port);
+        }
+        return (int) port;
+    }
+
+    /**
+     * Parse a decimal number from part of a string, without copying it out
+     * first.
+     */
+    private static long parseLong(String s, int start, int end) {
+        boolean negative = start < end && s.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i >= end) {
+            throw new NumberFormatException("no number in: " + s.substring(start, end));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("not a number: " + s.substring(start, end));
+            }
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("number too large: " + s.substring(start, end));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
     }
 
     /**
@@ -661,6 +1008,16 @@ public class WhiteboardApp {
      *
      *****
      */
+    /**
+     * @param boardName
+     * @return the board data to send to a subscriber, or null if the board
+     * does not exist
+     */
+    String boardSnapshot(String boardName) {
+        Whiteboard whiteboard = whiteboards.get(boardName);
+        return whiteboard == null ? null : replicaOf(whiteboard).toString();
+    }
+
     /**
      * Wait for the peer manager to finish all threads.
      */
@@ -683,15 +1040,325 @@ public class WhiteboardApp {
     }
 
     /**
-     * Delete a board from the list.
+     * Add a remote board to the list by name only. Its content is downloaded
+     * from the hosting peer when the board is selected.
      *
      * @param boardname must have the form peer:port:boardid
      */
-    public void deleteBoard(String boardname) {
-        synchronized (whiteboards) {
-            Whiteboard whiteboard = whiteboards.get(boardname);
-            if (whiteboard != null) {
+    public void addRemoteStub(String boardname) {
+        if (!whiteboards.containsKey(boardname)) {
+            Whiteboard stub = new Whiteboard(boardname, true);
+            stub.setShared(true);
+            addBoard(stub, false);
+        }
+    }
+
+    /**
+     * @param boardname must have the form peer:port:boardid
+     * @return "host:port" to subscribe to the board at, either its relay in
+     * view only mode or the peer hosting it
+     */
+    String boardSource(String boardname) {
+        String relay = viewOnly ? boardRelays.get(boardname) : null;
+        return relay != null ? relay : getIP(boardname) + ":" + getPort(boardname);
+    }
+
+    /**
+     * Send an update to every subscriber except the one it came from. The
+     * argument is built once and the same string goes to every subscriber.
+     *
+     * @param eventName
+     * @param boardName peer:port:boardid the update is for
+     * @param arg
+     * @param except endpoint id of the subscriber the update came from, or
+     * null to send it to all
+     */
+    void forwardToSubscribers(String eventName, String boardName, String arg, String except) {
+        for (Map.Entry<String, SubscriberChannel> entry : peerInformation.entrySet()) {
+            if (!entry.getKey().equals(except)) {
+                entry.getValue().send(eventName, boardName, arg);
+            }
+        }
+    }
+
+    /**
+     * @return a callback running the handler on the handler queue of the
+     * board named in its argument
+     */
+    EventCallback onBoard(EventCallback callback) {
+        // a trace header must not change the queue, updates of a board are applied in order
+        return handlers.dispatch((args) -> getBoardName(StrokeTracer.strip((String) args[0])), callback);
+    }
+
+    /**
+     * A subscriber asks for a change to a board hosted here.
+     *
+     * @param eventName boardPathAccepted, boardPathBatch, boardUndoAccepted
+     * or boardClearAccepted
+     * @param tracedData host:port:boardid%version%PATHS, possibly traced
+     */
+    void changeRequested(String eventName, String tracedData) {
+        Whiteboard board = whiteboards.get(getBoardName(StrokeTracer.strip(tracedData)));
+        // subscribers can only change the boards they can see
+        if (board != null && !board.isRemote() && board.isShared()) {
+            hostChange(board, eventName, tracedData);
+        }
+    }
+
+    /**
+     * Apply a change to a board hosted here, see {@link BoardProtocol#host},
+     * and send the update for it to every subscriber, including the one that
+     * asked for it, if the board is shared.
+     *
+     * @param board a board hosted here
+     * @param eventName boardPathAccepted, boardPathBatch, boardUndoAccepted
+     * or boardClearAccepted
+     * @param tracedData host:port:boardid%version%PATHS, possibly traced
+     * @return false if the change was refused
+     */
+    boolean hostChange(Whiteboard board, String eventName, String tracedData) {
+        String data = StrokeTracer.strip(tracedData);
+        String update = BoardProtocol.host(replicaOf(board), eventName, data);
+        if (update == null) {
+            events.info("refused", () -> eventName + " " + data);
+            return false;
+        }
+        String updateEvent = BoardProtocol.updateFor(eventName);
+        events.info(updateEvent, () -> update);
+        renderScheduler.markDirty(board.getName());
+        if (board.isShared()) {
+            String header = tracedData.substring(0, tracedData.length() - data.length());
+            forwardToSubscribers(updateEvent, board.getName(),
+                    header.isEmpty() ? update : strokeTracer.stamp(header + update), null);
+        }
+        return true;
+    }
+
+    /**
+     * Apply an update from the host of a remote board, see
+     * {@link BoardProtocol.Subscription#update}, fetching the board again if
+     * updates were missed.
+     *
+     * @param host connection to the host, or to the relay serving the board
+     * @param eventName boardPathUpdate, boardPathBatch, boardUndoUpdate or
+     * boardClearUpdate
+     * @param tracedData host:port:boardid%version%PATHS, possibly traced
+     */
+    void updateFromHost(Endpoint host, String eventName, String tracedData) {
+        String data = StrokeTracer.strip(tracedData);
+        String boardName = getBoardName(data);
+        Whiteboard board = whiteboards.get(boardName);
+        // stubs have no content to update, they are downloaded in full when selected
+        if (board == null || !remoteBoards.isMaterialized(boardName)) {
+            return;
+        }
+        switch (subscription(boardName).update(replicaOf(board), eventName, data)) {
+        case APPLIED:
+            events.info(eventName, () -> data);
+            renderScheduler.markDirty(boardName);
+            strokeTracer.applied(boardName, tracedData);
+            remoteBoardChanged(board, eventName, data);
+            break;
+        case GAP:
+            events.warning("resync", () -> boardName + " missed updates before " + getBoardVersion(data));
+            fetchBoard(host, boardName);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * @param boardName a remote board
+     * @return the subscriber side state of the board
+     */
+    BoardProtocol.Subscription subscription(String boardName) {
+        return subscriptions.computeIfAbsent(boardName, (name) -> new BoardProtocol.Subscription());
+    }
+
+    /**
+     * Rename a remote board after its host has gone and another peer has
+     * taken it over. If that peer is us, the board becomes one of our own
+     * boards and is shared again under its new name. Otherwise our copy is
+     * kept if it is at the new host's version, and is fetched again from the
+     * new host when selected if not.
+     *
+     * @param oldName oldhost:oldport:boardid
+     * @param newName newhost:newport:boardid
+     * @param version version of the new host's copy
+     * @param server connection to the whiteboard server
+     */
+    void moveBoard(String oldName, String newName, long version, Endpoint server) {
+        Whiteboard old = whiteboards.get(oldName);
+        if (old == null) {
+            return;
+        }
+        boolean held = remoteBoards.isMaterialized(oldName);
+        boolean promoted = newName.startsWith(peerport + ":");
+        Whiteboard moved = new Whiteboard(newName, !promoted);
+        if (held) {
+            moved.whiteboardFromString(newName, getBoardData(replicaOf(old).toString()));
+        }
+        forgetHistory(oldName);
+        forgetHistory(newName);
+        moved.setShared(true);
+        whiteboards.put(newName, moved);
+        whiteboards.remove(oldName);
+        remoteBoards.remove(oldName);
+        subscriptions.remove(oldName);
+        boardRelays.remove(oldName);
+        boardHosts.remove(oldName);
+        if (promoted) {
+            server.emit(WhiteboardServer.shareBoard, newName);
+        } else if (held && new WhiteboardReplica(old).getVersion() == version) {
+            materializeRemoteBoard(moved, 2L * moved.toString().length());
+        }
+        boolean wasSelected = selectedBoard != null && selectedBoard.getName().equals(oldName);
+        updateComboBox(wasSelected ? newName : null);
+    }
+
+    /**
+     * A subscriber's connection has stopped or been declared failed. Its
+     * channel is kept for a while in case the subscriber comes back and
+     * resumes the session.
+     *
+     * @param endpoint
+     */
+    void subscriberGone(Endpoint endpoint) {
+        String id = endpoint.getOtherEndpointId();
+        SubscriberChannel channel = peerInformation.get(id);
+        if (channel == null || channel.isDetached()) {
+            return;
+        }
+        channel.detach();
+        parkedSessions.put(channel.getSessionToken(), id);
+        Utils.getInstance().setTimeout((args) -> {
+            parkedSessions.remove(channel.getSessionToken(), id);
+            if (peerInformation.remove(id, channel)) {
+                log.info("Session of " + id + " expired");
+            }
+        }, SubscriberChannel.resumeGrace);
+    }
+
+    /**
+     * Reconnect to a peer or relay whose connection dropped, if we still have
+     * boards from it, resuming the session where possible.
+     *
+     * @param source "host:port" of the peer or relay
+     */
+    void reconnect(String source) {
+        if (peerConnectionInfo.containsKey(source + myHostPort)) {
+            return;
+        }
+        for (Map.Entry<String, Whiteboard> entry : whiteboards.entrySet()) {
+            if (entry.getValue().isRemote() && boardSource(entry.getKey()).equals(source)) {
+                log.info("Reconnecting to " + source);
+                getBoardFromPeer(peerManager, entry.getKey());
+                return;
+            }
+        }
+        resumeArguments.remove(source);
+    }
+
+    /**
+     * Ask the hosting peer for the content of a remote board, unless it has
+     * already been downloaded.
+     *
+     * @param boardname must have the form peer:port:boardid
+     */
+    void requestRemoteBoard(String boardname) {
+        Endpoint host = boardHosts.get(boardname);
+        if (host != null && !remoteBoards.isMaterialized(boardname)) {
+            fetchBoard(host, boardname);
+        }
+    }
+
+    /**
+     * Ask the host of a remote board, or the relay serving it, for the whole
+     * board.
+     *
+     * @param host
+     * @param boardName
+     */
+    void fetchBoard(Endpoint host, String boardName) {
+        subscription(boardName).requested();
+        host.emit(getBoardData, boardName);
+    }
+
+    /**
+     * Replace the stub or stale copy of a remote board with the downloaded
+     * board, turning the least recently used remote boards back into stubs if
+     * that takes them over the memory budget.
+     *
+     * @param whiteboard
+     * @param bytes estimated memory used by the board
+     */
+    void materializeRemoteBoard(Whiteboard whiteboard, long bytes) {
+        String boardname = whiteboard.getName();
+        // the history of the board replaced is started again from this one
+        forgetHistory(boardname);
+        whiteboards.put(boardname, whiteboard);
+        Whiteboard selected = selectedBoard;
+        evictRemoteBoards(remoteBoards.materialized(boardname, bytes,
+                selected == null ? null : selected.getName()));
+        // also takes over the selected board if it was the one replaced
+        updateComboBox(null);
+    }
+
+    /**
+     * Keep the estimated size of a remote board up to date as updates are
+     * applied to it, turning the least recently used remote boards, possibly
+     * this one, back into stubs if it grows over the memory budget.
+     *
+     * @param board
+     * @param eventName the update applied
+     * @param data host:port:boardid%version%PATHS
+     */
+    void remoteBoardChanged(Whiteboard board, String eventName, String data) {
+        Whiteboard selected = selectedBoard;
+        String keep = selected == null ? null : selected.getName();
+        List<String> victims;
+        if (eventName.equals(boardPathUpdate) || eventName.equals(boardPathBatch)) {
+            victims = remoteBoards.grown(board.getName(), 2L * getBoardPaths(data).length(), keep);
+        } else {
+            // undo, clear and restore shrink or replace the board, measure it again
+            victims = remoteBoards.resized(board.getName(), 2L * replicaOf(board).toString().length(), keep);
+        }
+        if (!victims.isEmpty()) {
+            evictRemoteBoards(victims);
+            updateComboBox(null);
+        }
+    }
+
+    /**
+     * Turn remote boards back into stubs. Board data already asked for is
+     * ignored when it arrives, the board is asked for again when selected.
+     *
+     * @param victims
+     */
+    void evictRemoteBoards(List<String> victims) {
+        for (String victim : victims) {
+            forgetHistory(victim);
+            subscriptions.remove(victim);
+            if (whiteboards.containsKey(victim)) {
+                Whiteboard stub = new Whiteboard(victim, true);
+                stub.setShared(true);
+                whiteboards.put(victim, stub);
+            }
+        }
+    }
+
+    /**
+     * Delete a board from the list.
+     *
+     * @param boardname must have the form peer:port:boardid
+     */
+    public void deleteBoard(String boardname) {
+        synchronized (whiteboards) {
+            Whiteboard whiteboard = whiteboards.get(boardname);
+            if (whiteboard != null) {
                 whiteboards.remove(boardname);
+                forgetHistory(boardname);
             }
         }
         updateComboBox(null);
@@ -707,21 +1374,132 @@ public class WhiteboardApp {
         addBoard(whiteboard, true);
     }
 
+    /**
+     * Save the selected board to a {@link BoardFile}.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void exportBoard(Path file) throws IOException {
+        if (selectedBoard == null) {
+            log.severe("there is no selected board to export");
+            return;
+        }
+        synchronized (selectedBoard) {
+            BoardFile.write(file, selectedBoard);
+        }
+        log.info("exported " + selectedBoard.getName() + " to " + file);
+    }
+
+    /**
+     * Load a {@link BoardFile} as a new local board. The file is mapped and
+     * each path is decoded from the mapping when the batch that adds it to
+     * the board is built, see {@link #importPaths(Whiteboard, List)}; the
+     * board itself then holds every path in memory, like any other board.
+     *
+     * @param file
+     * @throws IOException if the file can't be read or is damaged
+     */
+    public void importBoard(Path file) throws IOException {
+        String name = peerport + ":board" + Instant.now().toEpochMilli();
+        Whiteboard whiteboard = new Whiteboard(name, false);
+        try (BoardFile boardFile = BoardFile.open(file)) {
+            // the batch raises the version by one per path, up to the version saved
+            long version = Math.max(0, boardFile.getBoardVersion() - boardFile.size());
+            new WhiteboardReplica(whiteboard).reset(version, new ArrayList<>());
+            if (boardFile.size() > 0 && !importPaths(whiteboard, boardFile.paths())) {
+                throw new IOException("could not add the paths of " + boardFile.getBoardName());
+            }
+            log.info("imported " + boardFile.size() + " paths of " + boardFile.getBoardName()
+                    + " from " + file + " as " + name);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        addBoard(whiteboard, true);
+    }
+
+    /**
+     * Set the tolerance, in pixels, used to simplify strokes drawn locally.
+     *
+     * @param tolerance 0 to keep every mouse sample
+     */
+    public void setStrokeTolerance(double tolerance) {
+        strokeSimplifier.setTolerance(tolerance);
+    }
+
+    /**
+     * Turn latency tracing of strokes sent between peers on or off.
+     */
+    public void setStrokeTracing(boolean enabled) {
+        boolean wasEnabled = strokeTracer.isEnabled();
+        strokeTracer.setEnabled(enabled);
+        if (enabled && !wasEnabled) {
+            scheduleStrokeLatencyDump();
+        }
+    }
+
+    /**
+     * Log the stroke latencies every {@link #strokeLatencyDump} milliseconds
+     * for as long as tracing is on.
+     */
+    private void scheduleStrokeLatencyDump() {
+        Utils.getInstance().setTimeout((args) -> {
+            if (strokeTracer.isEnabled()) {
+                dumpStrokeLatency();
+                scheduleStrokeLatencyDump();
+            }
+        }, strokeLatencyDump);
+    }
+
+    /**
+     * Log the stroke latencies measured since the last call and start over.
+     */
+    public void dumpStrokeLatency() {
+        log.info(strokeTracer.dump());
+        strokeTracer.reset();
+    }
+
+    /**
+     * Simplify a path drawn on the draw area and add it to the selected
+     * board.
+     *
+     * @param currentPath
+     */
+    public void pathCreatedLocally(WhiteboardPath currentPath) {
+        WhiteboardPath simplified = strokeSimplifier.simplify(currentPath);
+        addPathLocally(simplified, simplified != currentPath);
+    }
+
     /**
      * Add a path to the selected board. The path has already been drawn on the
      * draw area; so if it can't be accepted then the board needs to be redrawn
-     * without it.
+     * without it. A path on a remote board is sent to the host, and is added
+     * to our copy when the host's update for it comes back.
      *
      * @param currentPath
+     * @param simplified true if the path drawn had more points, then the
+     * board is redrawn to show what the other peers get
      */
-    public void pathCreatedLocally(WhiteboardPath currentPath) {
+    private void addPathLocally(WhiteboardPath currentPath, boolean simplified) {
+        if (simplified) {
+            log.fine(() -> "simplified stroke, totals: " + strokeSimplifier.report());
+        }
         if (selectedBoard != null) {
-            if (!selectedBoard.addPath(currentPath, selectedBoard.getVersion())) {
-                // some other peer modified the board in between
-                drawSelectedWhiteboard(); // just redraw the screen without the path
-
+            Whiteboard board = selectedBoard;
+            String data = board.getName() + "%" + new WhiteboardReplica(board).getVersion() + "%" + currentPath;
+            if (board.isRemote()) {
+                // a host that does not understand trace headers gets the plain path
+                Endpoint host = boardHosts.get(board.getName());
+                String arg = host != null && traceHeaderHosts.contains(host) ? strokeTracer.start(peerport, data) : data;
+                if (!sendLocalChange(board, boardPathAccepted, arg)) {
+                    drawSelectedWhiteboard(); // just redraw the screen without the path
+                }
             } else {
-                // was accepted locally, so do remote stuff if needed
+                hostChange(board, boardPathAccepted, strokeTracer.startAtHost(peerport, data));
+            }
+            if (simplified) {
+                // the unsimplified stroke is on screen
+                drawSelectedWhiteboard();
             }
         } else {
             log.severe("path created without a selected board: " + currentPath);
@@ -729,20 +1507,124 @@ public class WhiteboardApp {
     }
 
     /**
-     * Clear the selected whiteboard.
+     * Send a change made here to a shared board on to the other peers holding
+     * it: the peer hosting it if it is a remote board, otherwise every
+     * subscriber. Called for changes made through the GUI, whichever
+     * connections are up at the time.
+     *
+     * @param board
+     * @param eventName
+     * @param arg
+     * @return false if the board is remote and its host is not connected, or
+     * the board is only viewed here
      */
-    public void clearedLocally() {
-        if (selectedBoard != null) {
-            if (!selectedBoard.clear(selectedBoard.getVersion())) {
-                // some other peer modified the board in between
-                drawSelectedWhiteboard();
-            } else {
-                // was accepted locally, so do remote stuff if needed
-
-                drawSelectedWhiteboard();
+    boolean sendLocalChange(Whiteboard board, String eventName, String arg) {
+        if (isReadOnly(board)) {
+            return false;
+        }
+        if (!board.isShared()) {
+            return true;
+        }
+        if (board.isRemote()) {
+            Endpoint host = boardHosts.get(board.getName());
+            if (host == null) {
+                return false;
             }
+            host.emit(eventName, arg);
         } else {
+            forwardToSubscribers(eventName, board.getName(), arg, null);
+        }
+        return true;
+    }
+
+    /**
+     * @param board
+     * @return true if the board is subscribed to through a relay, which only
+     * lets it be viewed
+     */
+    boolean isReadOnly(Whiteboard board) {
+        String name = board.getName();
+        return board.isRemote() && !boardSource(name).equals(getIP(name) + ":" + getPort(name));
+    }
+
+    /**
+     * Make a change to the selected board through the GUI: applied here if
+     * the board is hosted here, otherwise asked of the host.
+     *
+     * @param board the selected board
+     * @param eventName boardPathBatch, boardUndoAccepted or
+     * boardClearAccepted
+     * @param data host:port:boardid%version%PATHS
+     * @return false if the change was refused or could not be sent
+     */
+    boolean changeLocally(Whiteboard board, String eventName, String data) {
+        boolean changed = board.isRemote() ? sendLocalChange(board, eventName, data)
+                : hostChange(board, eventName, data);
+        if (!changed) {
+            // the GUI may show the change already
+            drawSelectedWhiteboard();
+        }
+        return changed;
+    }
+
+    /**
+     * Give a board that has just been shared again to the subscribers that
+     * had asked for it.
+     *
+     * @param board
+     */
+    void pushBoardData(Whiteboard board) {
+        String data = replicaOf(board).toString();
+        for (SubscriberChannel channel : peerInformation.values()) {
+            channel.pushBoard(board.getName(), data);
+        }
+    }
+
+    /**
+     * Add many paths to the selected board as a single update, e.g. when
+     * replaying a recording, sent to the other peers as one event if the
+     * board is shared.
+     *
+     * @param paths
+     * @return false if there is no selected board or the batch could not be
+     * sent to its host
+     */
+    public boolean importPaths(List<WhiteboardPath> paths) {
+        Whiteboard board = selectedBoard;
+        if (board == null) {
+            log.severe("import without a selected board");
+            return false;
+        }
+        return importPaths(board, paths);
+    }
+
+    /**
+     * Add many paths to a board as a single update, see
+     * {@link #importPaths(List)}.
+     *
+     * @param board
+     * @param paths
+     * @return false if the batch was refused or could not be sent to the
+     * board's host
+     */
+    boolean importPaths(Whiteboard board, List<WhiteboardPath> paths) {
+        StringBuilder sb = ScratchBuffers.builder().append(board.getName()).append('%')
+                .append(new WhiteboardReplica(board).getVersion());
+        for (WhiteboardPath path : paths) {
+            sb.append('%').append(path);
+        }
+        return changeLocally(board, boardPathBatch, sb.toString());
+    }
+
+    /**
+     * Clear the selected whiteboard.
+     */
+    public void clearedLocally() {
+        Whiteboard board = selectedBoard;
+        if (board == null) {
             log.severe("cleared without a selected board");
+        } else if (changeLocally(board, boardClearAccepted, board.getName() + "%" + new WhiteboardReplica(board).getVersion() + "%")) {
+            events.info("clear", () -> board.getName());
         }
     }
 
@@ -750,23 +1632,141 @@ public class WhiteboardApp {
      * Undo the last path of the selected whiteboard.
      */
     public void undoLocally() {
-        if (selectedBoard != null) {
-            if (!selectedBoard.undo(selectedBoard.getVersion())) {
-                // some other peer modified the board in between
-                drawSelectedWhiteboard();
-            } else {
-
-                drawSelectedWhiteboard();
-            }
-        } else {
+        Whiteboard board = selectedBoard;
+        if (board == null) {
             log.severe("undo without a selected board");
+        } else if (changeLocally(board, boardUndoAccepted, board.getName() + "%" + new WhiteboardReplica(board).getVersion() + "%")) {
+            events.info("undo", () -> board.getName());
         }
     }
 
+    /**
+     * @param board
+     * @return the board, with its history if it keeps one: boards hosted
+     * here and remote boards that have been downloaded keep one, stubs don't
+     */
+    WhiteboardReplica replicaOf(Whiteboard board) {
+        String name = board.getName();
+        if (board.isRemote() && !remoteBoards.isMaterialized(name)) {
+            return new WhiteboardReplica(board);
+        }
+        return new WhiteboardReplica(board, histories.computeIfAbsent(name, (key) -> new VersionedPaths(historyLimit)));
+    }
+
+    /**
+     * Drop the history of a board and its spatial index, when the board is
+     * replaced or removed.
+     *
+     * @param boardName
+     */
+    void forgetHistory(String boardName) {
+        histories.remove(boardName);
+        pathGrids.remove(boardName);
+    }
+
+    /**
+     * @param board a board with a history
+     * @param snapshot of the board
+     * @return the paths of the snapshot that overlap the viewport, in the
+     * order they are drawn in
+     */
+    List<WhiteboardPath> visiblePaths(Whiteboard board, VersionedPaths.Snapshot snapshot) {
+        return pathGrids.computeIfAbsent(board.getName(), (name) -> new PathGrid()).query(snapshot, viewport);
+    }
+
+    /**
+     * @param point on the draw area
+     * @return e.g. "path 12 of 340, version 415" for the topmost path of the
+     * selected board under the point, or null if there is none
+     */
+    String describePathAt(Point point) {
+        Whiteboard board = selectedBoard;
+        VersionedPaths.Snapshot snapshot = board == null ? null : replicaOf(board).snapshot();
+        if (snapshot == null) {
+            return null;
+        }
+        int position = pathGrids.computeIfAbsent(board.getName(), (name) -> new PathGrid())
+                .hitTest(snapshot, point, 3);
+        return position < 0 ? null
+                : "path " + (position + 1) + " of " + snapshot.size() + ", version " + snapshot.getVersion();
+    }
+
+    /**
+     * @param data = peer:port:boardid%version%PATHS
+     * @return the paths
+     */
+    static List<WhiteboardPath> parsePaths(String data) {
+        int start = data.indexOf('%', data.indexOf('%') + 1) + 1;
+        if (start == 0) {
+            return new ArrayList<>();
+        }
+        // large boards are parsed in parallel ranges
+        return ParallelCodec.decode(data, start, '%', WhiteboardPath::new);
+    }
+
+    /**
+     * @param version
+     * @return the selected board as it was at the given version, or null if
+     * the version is older than the board's history
+     */
+    public VersionedPaths.Snapshot boardAtVersion(long version) {
+        if (selectedBoard == null) {
+            return null;
+        }
+        VersionedPaths history = replicaOf(selectedBoard).getHistory();
+        return history == null ? null : history.at(version);
+    }
+
+    /**
+     * Draw the selected board as it was at an older version, without changing
+     * it. Drawing the selected board again goes back to the current version.
+     *
+     * @param version
+     * @return false if the version is not in the board's history
+     */
+    public boolean showVersion(long version) {
+        VersionedPaths.Snapshot snapshot = boardAtVersion(version);
+        if (snapshot == null) {
+            return false;
+        }
+        drawArea.clear();
+        frameOf(selectedBoard, snapshot.getPaths()).draw(drawArea);
+        return true;
+    }
+
+    /**
+     * Put the selected board back to an older version. The paths of the older
+     * version replace the board's as a single new version, applied by the
+     * host only if the board has not changed meanwhile, so every copy of a
+     * shared board sees the same restore, and the restore itself stays in
+     * the history.
+     *
+     * @param version
+     * @return false if the version is not in the board's history, or the
+     * restore was refused or could not be sent
+     */
+    public boolean restoreBoard(long version) {
+        VersionedPaths.Snapshot snapshot = boardAtVersion(version);
+        if (snapshot == null) {
+            return false;
+        }
+        Whiteboard board = selectedBoard;
+        StringBuilder sb = ScratchBuffers.builder().append(board.getName()).append('%')
+                .append(new WhiteboardReplica(board).getVersion());
+        for (WhiteboardPath path : snapshot.getPaths()) {
+            sb.append('%').append(path);
+        }
+        return changeLocally(board, boardRestoreAccepted, sb.toString());
+    }
+
     /**
      * The variable selectedBoard has been set.
      */
     public void selectedABoard() {
+        boolean editable = !isReadOnly(selectedBoard);
+        drawArea.setEnabled(editable);
+        clearBtn.setEnabled(editable);
+        undoBtn.setEnabled(editable);
         drawSelectedWhiteboard();
         log.info("selected board: " + selectedBoard.getName());
     }
@@ -812,6 +1812,11 @@ public class WhiteboardApp {
 //        }
 
 
+        renderScheduler.shutdown();
+        if (strokeTracer.isEnabled()) {
+            dumpStrokeLatency();
+        }
+
         try {
             peerManager.shutdown();
         } catch (Exception e) {
@@ -835,10 +1840,83 @@ public class WhiteboardApp {
      * Redraw the screen with the selected board
      */
     public void drawSelectedWhiteboard() {
+        if (uiBuilt.getCount() > 0) {
+            // the board is drawn when the GUI is built
+            return;
+        }
         drawArea.clear();
-        if (selectedBoard != null) {
-            selectedBoard.draw(drawArea);
+        Whiteboard board = selectedBoard;
+        if (board != null) {
+            VersionedPaths.Snapshot snapshot = replicaOf(board).snapshot();
+            if (snapshot != null) {
+                frameOf(board, visiblePaths(board, snapshot)).draw(drawArea);
+            } else {
+                // a stub, handlers may be changing it
+                synchronized (board) {
+                    board.draw(drawArea);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param board
+     * @param paths of a snapshot of the board
+     * @return a copy of the board with just these paths, only seen by the
+     * caller, so it can be drawn while handlers change the board
+     */
+    static Whiteboard frameOf(Whiteboard board, List<WhiteboardPath> paths) {
+        Whiteboard frame = new Whiteboard(board.getName(), board.isRemote());
+        long version = 0;
+        for (WhiteboardPath path : paths) {
+            frame.addPath(path, version++);
         }
+        return frame;
+    }
+
+    /**
+     * Copy the selected board for the render scheduler to draw, off the GUI
+     * thread, so the GUI thread neither builds the copy nor waits for
+     * handlers changing the board. The copy is made from the paths of the
+     * board's snapshot, without serializing or parsing them, and only has
+     * the paths in view, see {@link PathGrid}.
+     *
+     * @param boardName a board that changed
+     * @return a copy of the board, or null if it is not the selected board or
+     * is a stub
+     */
+    private Whiteboard prepareFrame(String boardName) {
+        Whiteboard board = selectedBoard;
+        if (board == null || !board.getName().equals(boardName)) {
+            return null;
+        }
+        VersionedPaths.Snapshot snapshot = replicaOf(board).snapshot();
+        return snapshot == null ? null : frameOf(board, visiblePaths(board, snapshot));
+    }
+
+    /**
+     * Open a window showing a board on an unbounded canvas that can be
+     * panned and zoomed, following the board's changes, see
+     * {@link BoardCanvas}.
+     *
+     * @param boardName
+     */
+    public void showZoomView(String boardName) {
+        BoardCanvas canvas = new BoardCanvas(() -> {
+            Whiteboard board = whiteboards.get(boardName);
+            return board == null ? null : replicaOf(board).snapshot();
+        });
+        JFrame frame = new JFrame(boardName);
+        frame.getContentPane().add(canvas, BorderLayout.CENTER);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent windowEvent) {
+                canvas.shutdown();
+            }
+        });
+        frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        frame.setSize(600, 600);
+        frame.setVisible(true);
     }
 
     /**
@@ -856,6 +1934,19 @@ public class WhiteboardApp {
 
         // add to content pane
         content.add(drawArea, BorderLayout.CENTER);
+        drawArea.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                viewport = new Rectangle(0, 0, drawArea.getWidth(), drawArea.getHeight());
+                drawSelectedWhiteboard();
+            }
+        });
+        drawArea.addMouseMotionListener(new MouseMotionAdapter() {
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                drawArea.setToolTipText(describePathAt(e.getPoint()));
+            }
+        });
 
         // create controls to apply colors and call clear feature
         JPanel controls = new JPanel();
@@ -888,6 +1979,8 @@ public class WhiteboardApp {
                     selectedBoard = whiteboards.get(selectedBoardName);
                     // remote boards can't have their shared status modified
                     if (selectedBoard.isRemote()) {
+                        remoteBoards.touch(selectedBoardName);
+                        requestRemoteBoard(selectedBoardName);
                         sharedCheckbox.setEnabled(false);
                         sharedCheckbox.setVisible(false);
                     } else {
@@ -911,7 +2004,62 @@ public class WhiteboardApp {
                         log.severe("there is no selected board to delete");
                         return;
                     }
+                    events.info("delete", () -> selectedBoard.getName());
+                    sendLocalChange(selectedBoard, boardDeleted, selectedBoard.getName());
                     deleteBoard(selectedBoard.getName());
+                } else if (e.getSource() == exportBoardBtn) {
+                    JFileChooser chooser = new JFileChooser();
+                    if (selectedBoard != null && chooser.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION) {
+                        try {
+                            exportBoard(chooser.getSelectedFile().toPath());
+                        } catch (IOException ex) {
+                            JOptionPane.showMessageDialog(frame, "Could not export board: " + ex.getMessage());
+                        }
+                    }
+                } else if (e.getSource() == historyBtn) {
+                    VersionedPaths history = selectedBoard == null ? null : replicaOf(selectedBoard).getHistory();
+                    if (history == null) {
+                        log.severe("there is no board history to show");
+                        return;
+                    }
+                    long[] versions = history.getHistoryVersions();
+                    if (versions.length == 0) {
+                        // pb.historyVersions is 0
+                        JOptionPane.showMessageDialog(frame, "No board history is kept");
+                        return;
+                    }
+                    String input = JOptionPane.showInputDialog(frame, "Version (" + versions[0] + " to "
+                            + versions[versions.length - 1] + ")", versions[0]);
+                    if (input == null) {
+                        return;
+                    }
+                    long version;
+                    try {
+                        version = Long.parseLong(input.trim());
+                    } catch (NumberFormatException ex) {
+                        return;
+                    }
+                    if (showVersion(version) && JOptionPane.showConfirmDialog(frame,
+                            "Restore the board to version " + version + "?", "History",
+                            JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                        restoreBoard(version);
+                    }
+                    drawSelectedWhiteboard();
+                } else if (e.getSource() == zoomViewBtn) {
+                    if (selectedBoard == null) {
+                        log.severe("there is no selected board to view");
+                    } else {
+                        showZoomView(selectedBoard.getName());
+                    }
+                } else if (e.getSource() == importBoardBtn) {
+                    JFileChooser chooser = new JFileChooser();
+                    if (chooser.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION) {
+                        try {
+                            importBoard(chooser.getSelectedFile().toPath());
+                        } catch (IOException ex) {
+                            JOptionPane.showMessageDialog(frame, "Could not import board: " + ex.getMessage());
+                        }
+                    }
                 }
             }
         };
@@ -940,11 +2088,38 @@ public class WhiteboardApp {
         undoBtn.addActionListener(actionListener);
         undoBtn.setToolTipText("Remove the last path drawn on the board - triggers an undo on remote copies as well");
         undoBtn.setAlignmentX(Component.CENTER_ALIGNMENT);
+        exportBoardBtn = new JButton("Export");
+        exportBoardBtn.addActionListener(actionListener);
+        exportBoardBtn.setToolTipText("Save the current board to a file");
+        exportBoardBtn.setAlignmentX(Component.CENTER_ALIGNMENT);
+        importBoardBtn = new JButton("Import");
+        importBoardBtn.addActionListener(actionListener);
+        importBoardBtn.setToolTipText("Load a board from a file as a new local board");
+        importBoardBtn.setAlignmentX(Component.CENTER_ALIGNMENT);
+        historyBtn = new JButton("History");
+        historyBtn.addActionListener(actionListener);
+        historyBtn.setToolTipText("Show the current board at an earlier version and optionally restore it");
+        historyBtn.setAlignmentX(Component.CENTER_ALIGNMENT);
+        zoomViewBtn = new JButton("Zoom View");
+        zoomViewBtn.addActionListener(actionListener);
+        zoomViewBtn.setToolTipText("View the current board in a window that can be panned and zoomed");
+        zoomViewBtn.setAlignmentX(Component.CENTER_ALIGNMENT);
         sharedCheckbox = new JCheckBox("Shared");
         sharedCheckbox.addItemListener(new ItemListener() {
             public void itemStateChanged(ItemEvent e) {
                 if (!modifyingCheckBox) {
                     setShare(e.getStateChange() == 1);
+                    // tell the whiteboard server, if connected; it is told again when it connects
+                    Endpoint server = whiteboardServer;
+                    if (e.getStateChange() == ItemEvent.SELECTED) {
+                        pushBoardData(selectedBoard);
+                        if (server != null) {
+                            server.emit(WhiteboardServer.shareBoard, selectedBoard.getName());
+                        }
+                    }
+                    if (e.getStateChange() == ItemEvent.DESELECTED && server != null) {
+                        server.emit(WhiteboardServer.unshareBoard, selectedBoard.getName());
+                    }
                 }
 //                if (e.getStateChange() == ItemEvent.SELECTED) {
 //                    log.info("打钩变化的方法");
@@ -969,6 +2144,10 @@ public class WhiteboardApp {
         controls.add(redBtn);
         controls.add(undoBtn);
         controls.add(clearBtn);
+        controls.add(historyBtn);
+        controls.add(zoomViewBtn);
+        controls.add(exportBoardBtn);
+        controls.add(importBoardBtn);
 
         // add to content pane
         content.add(controls, BorderLayout.WEST);
@@ -995,13 +2174,43 @@ public class WhiteboardApp {
 
         // show the swing paint result
         frame.setVisible(true);
+        uiBuilt.countDown();
+        drawSelectedWhiteboard();
+        startupMilestone(windowShown);
+
+    }
+
+    /**
+     * Log the time since the JVM started the first time a milestone is
+     * reached.
+     *
+     * @return true if the milestone was reached for the first time
+     */
+    private boolean startupMilestone(String milestone) {
+        long millis = ManagementFactory.getRuntimeMXBean().getUptime();
+        if (startupMilestones.putIfAbsent(milestone, millis) != null) {
+            return false;
+        }
+        log.info("startup: " + milestone + " after " + millis + "ms");
+        if (startupBenchmark && milestone.equals(firstBoardShown)) {
+            finishStartupBenchmark();
+        }
+        return true;
+    }
 
+    private void finishStartupBenchmark() {
+        log.info("startup benchmark: " + startupMilestones);
+        System.exit(0);
     }
 
     /**
      * Update the GUI's list of boards. Note that this method needs to update
      * data that the GUI is using, which should only be done on the GUI's
-     * thread, which is why invoke later is used.
+     * thread, which is why invoke later is used. The list is only rebuilt if
+     * the set of boards has changed; changes to the content of a board are
+     * repainted through the render scheduler instead. A board replaced under
+     * the same name, e.g. a downloaded remote board, becomes the selected
+     * board if the one it replaced was.
      *
      * @param select, board to select when list is modified or null for default
      * selection
@@ -1010,21 +2219,34 @@ public class WhiteboardApp {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
+                ArrayList<String> boards;
+                synchronized (whiteboards) {
+                    boards = new ArrayList<String>(whiteboards.keySet());
+                }
+                Collections.sort(boards);
+                Whiteboard replacement = selectedBoard == null ? null : whiteboards.get(selectedBoard.getName());
+                if (replacement != null && replacement != selectedBoard) {
+                    selectedBoard = replacement;
+                    drawSelectedWhiteboard();
+                }
+                if (boards.equals(comboBoxBoards)) {
+                    if (select != null) {
+                        boardComboBox.setSelectedItem(select);
+                    }
+                    return;
+                }
+                comboBoxBoards = boards;
                 modifyingComboBox = true;
                 boardComboBox.removeAllItems();
                 int anIndex = -1;
-                synchronized (whiteboards) {
-                    ArrayList<String> boards = new ArrayList<String>(whiteboards.keySet());
-                    Collections.sort(boards);
-                    for (int i = 0; i < boards.size(); i++) {
-                        String boardname = boards.get(i);
-                        boardComboBox.addItem(boardname);
-                        if (select != null && select.equals(boardname)) {
-                            anIndex = i;
-                        } else if (anIndex == -1 && selectedBoard != null
-                                && selectedBoard.getName().equals(boardname)) {
-                            anIndex = i;
-                        }
+                for (int i = 0; i < boards.size(); i++) {
+                    String boardname = boards.get(i);
+                    boardComboBox.addItem(boardname);
+                    if (select != null && select.equals(boardname)) {
+                        anIndex = i;
+                    } else if (anIndex == -1 && selectedBoard != null
+                            && selectedBoard.getName().equals(boardname)) {
+                        anIndex = i;
                     }
                 }
                 modifyingComboBox = false;
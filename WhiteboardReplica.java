@@ -0,0 +1,253 @@
+package pb.app;
+
+import java.util.List;
+
+import pb.utils.ParallelCodec;
+import pb.utils.ScratchBuffers;
+
+/**
+ * Changes to the paths of a {@link Whiteboard}, each made as one step while
+ * holding the board's monitor. Every change to a board goes through here, so
+ * the version check and the change it guards can't be interleaved with any
+ * other change, whichever thread makes them, and the paths of a batch are
+ * appended with nothing else in between.
+ *
+ * If the board keeps a history, each change is made to the history in the
+ * same step, so the history never drifts from the board. The board is only
+ * read in full to start a history, or to start it again after the board was
+ * replaced by other means.
+ *
+ * The history is also what the board is read from: its current
+ * {@link VersionedPaths.Snapshot} is immutable and swapped atomically, so
+ * serializing a board, e.g. for a subscriber or to draw it, takes no lock and
+ * never holds up a change. Changes still take the board's monitor, to keep
+ * the {@link Whiteboard} in step with the history, and then publish the
+ * board's version through the history; a reader only trusts a snapshot at
+ * that version and never reads the {@link Whiteboard} itself without the
+ * monitor. Only a board without a history, or whose history is behind, is
+ * read under the monitor.
+ */
+public class WhiteboardReplica implements BoardProtocol.Replica {
+
+    private final Whiteboard board;
+    private final VersionedPaths history;
+
+    public WhiteboardReplica(Whiteboard board) {
+        this(board, null);
+    }
+
+    /**
+     * @param board
+     * @param history of the board, or null if it keeps none
+     */
+    public WhiteboardReplica(Whiteboard board, VersionedPaths history) {
+        this.board = board;
+        this.history = history;
+    }
+
+    public Whiteboard getBoard() {
+        return board;
+    }
+
+    /**
+     * @return the history at the board's version, or null if the board keeps
+     * none
+     */
+    public VersionedPaths getHistory() {
+        synchronized (board) {
+            syncHistory();
+            return history;
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        synchronized (board) {
+            return board.getVersion();
+        }
+    }
+
+    /**
+     * Append several paths if the board is still at the given version. Each
+     * path is added in turn, so this costs the size of the batch and not of
+     * the board, and the version goes up by one per path.
+     *
+     * @param paths in the order they are to be added
+     * @param versionBeforeUpdate
+     * @return true if the paths were added, false if the board has changed
+     */
+    @Override
+    public boolean addPaths(List<WhiteboardPath> paths, long versionBeforeUpdate) {
+        synchronized (board) {
+            if (board.getVersion() != versionBeforeUpdate) {
+                return false;
+            }
+            syncHistory();
+            long version = versionBeforeUpdate;
+            for (WhiteboardPath path : paths) {
+                board.addPath(path, version++);
+            }
+            if (history != null) {
+                history.addPaths(paths, versionBeforeUpdate);
+            }
+            published();
+            return true;
+        }
+    }
+
+    /**
+     * Remove the last path if the board is still at the given version.
+     *
+     * @param versionBeforeUpdate
+     * @return true if the undo was applied
+     */
+    @Override
+    public boolean undo(long versionBeforeUpdate) {
+        synchronized (board) {
+            syncHistory();
+            if (!board.undo(versionBeforeUpdate)) {
+                return false;
+            }
+            if (history != null) {
+                history.undo(versionBeforeUpdate);
+            }
+            published();
+            return true;
+        }
+    }
+
+    /**
+     * Remove all paths if the board is still at the given version.
+     *
+     * @param versionBeforeUpdate
+     * @return true if the clear was applied
+     */
+    @Override
+    public boolean clear(long versionBeforeUpdate) {
+        synchronized (board) {
+            syncHistory();
+            if (!board.clear(versionBeforeUpdate)) {
+                return false;
+            }
+            if (history != null) {
+                history.clear(versionBeforeUpdate);
+            }
+            published();
+            return true;
+        }
+    }
+
+    /**
+     * Replace all paths if the board is still at the given version, e.g. to
+     * restore an older version. The version goes up by one.
+     *
+     * @param paths in the order they were added
+     * @param versionBeforeUpdate
+     * @return true if the paths were replaced, false if the board has changed
+     */
+    @Override
+    public boolean replace(List<WhiteboardPath> paths, long versionBeforeUpdate) {
+        synchronized (board) {
+            if (board.getVersion() != versionBeforeUpdate) {
+                return false;
+            }
+            syncHistory();
+            board.whiteboardFromString(board.getName(), encode(versionBeforeUpdate + 1, paths));
+            if (history != null) {
+                history.replace(paths, versionBeforeUpdate);
+            }
+            published();
+            return true;
+        }
+    }
+
+    /**
+     * Replace the whole board.
+     *
+     * @param data version%PATHS
+     */
+    public void load(String data) {
+        synchronized (board) {
+            board.whiteboardFromString(board.getName(), data);
+            if (history != null) {
+                String loaded = board.toString();
+                history.reset(WhiteboardApp.getBoardVersion(loaded), WhiteboardApp.parsePaths(loaded));
+            }
+            published();
+        }
+    }
+
+    @Override
+    public void reset(long version, List<WhiteboardPath> paths) {
+        synchronized (board) {
+            board.whiteboardFromString(board.getName(), encode(version, paths));
+            if (history != null) {
+                history.reset(version, paths);
+            }
+            published();
+        }
+    }
+
+    /**
+     * @return the board as it is now, without taking the board's monitor
+     * unless the history is behind, or null if the board keeps no history
+     */
+    public VersionedPaths.Snapshot snapshot() {
+        if (history == null) {
+            return null;
+        }
+        VersionedPaths.Snapshot snapshot = history.snapshot();
+        // behind only while a change is being made or before the history is started
+        if (snapshot.getVersion() == history.getBoardVersion()) {
+            return snapshot;
+        }
+        synchronized (board) {
+            syncHistory();
+            return history.snapshot();
+        }
+    }
+
+    /**
+     * @return host:port:boardid%version%PATHS, read in one step. A board
+     * with a history is encoded from it, in parallel ranges for a large
+     * board, see {@link ParallelCodec}.
+     */
+    @Override
+    public String toString() {
+        VersionedPaths.Snapshot snapshot = snapshot();
+        if (snapshot == null) {
+            synchronized (board) {
+                return board.toString();
+            }
+        }
+        return board.getName() + "%" + snapshot;
+    }
+
+    /**
+     * Start the history again from the board if it is not at the board's
+     * version. Called while holding the board's monitor.
+     */
+    private void syncHistory() {
+        if (history != null && history.getVersion() != board.getVersion()) {
+            String data = board.toString();
+            history.reset(WhiteboardApp.getBoardVersion(data), WhiteboardApp.parsePaths(data));
+        }
+        published();
+    }
+
+    /**
+     * Tell readers the history is at the board's version. Called while
+     * holding the board's monitor, after a change to both.
+     */
+    private void published() {
+        if (history != null) {
+            history.setBoardVersion(board.getVersion());
+        }
+    }
+
+    private static String encode(long version, List<WhiteboardPath> paths) {
+        StringBuilder sb = ScratchBuffers.builder().append(version);
+        ParallelCodec.encode(sb, paths.size(), paths::get, '%');
+        return sb.toString();
+    }
+}
@@ -1,9 +1,16 @@
 package pb;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -16,8 +23,15 @@ import org.apache.commons.cli.ParseException;
 import pb.app.Whiteboard;
 import pb.app.WhiteboardApp;
 import pb.managers.IOThread;
+import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.utils.EventCallback;
+import pb.utils.KeyedExecutor;
+import pb.utils.Metrics;
+import pb.utils.RateLimitedLogger;
+import pb.utils.TimerWheel;
+import pb.utils.TokenBucket;
 import pb.utils.Utils;
 
 /**
@@ -30,6 +44,11 @@ public class WhiteboardServer {
 
     private static Logger log = Logger.getLogger(WhiteboardServer.class.getName());
 
+    /**
+     * Lazy, rate limited logging for the session event handlers.
+     */
+    private static RateLimitedLogger events = new RateLimitedLogger(log);
+
     /**
      * Emitted by a client to tell the server that a board is being shared.
      * Argument must have the format "host:port:boardid".
@@ -78,7 +97,8 @@ public class WhiteboardServer {
 
     /**
      * Emitted by the server to a client to let it know that there was an error
-     * in a received argument to any of the events above. Argument is the error
+     * in a received argument to any of the events above, or that the session
+     * or an event was refused by admission control. Argument is the error
      * message.
      * <ul>
      * <li>{@code args[0] instanceof String}</li>
@@ -88,11 +108,718 @@ public class WhiteboardServer {
 
     public static final String disconnectPeer = "DISCONNECT_PEER";
 
+    /**
+     * The server emits this event to all clients when the client sharing a
+     * board has gone, before giving up on the board. Clients holding a copy
+     * of the board answer with {@link #holdingBoard}. Argument has format
+     * "host:port:boardid".
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String ownerLost = "OWNER_LOST";
+
+    /**
+     * Emitted by a client in answer to {@link #ownerLost} when it holds a copy
+     * of the board, offering to host it. Argument has format
+     * "host:port:boardid%version%clienthost:clientport". The server ignores
+     * the client's host and port and uses the address the session registered,
+     * see {@link #peerAddress}; a session without one can't take over boards.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String holdingBoard = "HOLDING_BOARD";
+
+    /**
+     * Emitted by a client when its session starts, registering the host:port
+     * its peer listens on, which its boards are named after. A session that
+     * shares a board first is registered under the host:port of the board's
+     * name. The address can't change for the session and can't be taken by
+     * another session while registered. Argument has format "host:port".
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String peerAddress = "PEER_ADDRESS";
+
+    /**
+     * The server emits this event to all clients when a board whose sharing
+     * client has gone is taken over by the client holding the latest copy.
+     * The board is renamed after its new host, which shares it under the new
+     * name. Argument has format "oldhost:oldport:boardid%newhost:newport:boardid%version",
+     * where version is the version of the new host's copy.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String boardMoved = "BOARD_MOVED";
+
+    /**
+     * Emitted by a relay, see {@link BoardRelay}, to register itself with the
+     * server. Argument has format "host:port", where viewers can connect to.
+     * The server answers with a {@link #relayChallenge}.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String relayAvailable = "RELAY_AVAILABLE";
+
+    /**
+     * Emitted by the server in reply to {@link #relayAvailable}, for the relay
+     * to prove itself. Argument is a random nonce used only once.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String relayChallenge = "RELAY_CHALLENGE";
+
+    /**
+     * Emitted by a relay in answer to a {@link #relayChallenge}. Argument is
+     * the signature of "RELAY_PROOF%host:port%nonce" with the relay secret,
+     * see {@link ClusterNode#sign(String, String)}. The relay is registered
+     * only if it matches.
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String relayProof = "RELAY_PROOF";
+
+    /**
+     * The server emits this event just before {@link #sharingBoard} when
+     * relays are registered, naming the relay that serves the board to
+     * read-only viewers. Argument has format "relayhost:relayport%host:port:boardid".
+     * <ul>
+     * <li>{@code args[0] instanceof String}</li>
+     * </ul>
+     */
+    public static final String relayingBoard = "RELAYING_BOARD";
+
     /**
      * Default port number.
      */
     private static int port = Utils.indexServerPort;
 
+    /**
+     * Client sessions connected to this server, by endpoint id.
+     */
+    private static Map<String, Endpoint> peerInformation = new ConcurrentHashMap<>();
+
+    /**
+     * Boards shared by clients connected to this server, and their session.
+     */
+    private static Map<String, Endpoint> sharedBoards = new ConcurrentHashMap<>();
+
+    /**
+     * This server's shard of the catalog: the shared boards it owns in the
+     * cluster, and the endpoint id of the client sharing each of them.
+     */
+    private static Map<String, String> catalog = new ConcurrentHashMap<>();
+
+    /**
+     * Relays registered with this server, "host:port" by endpoint id.
+     */
+    private static Map<String, String> relays = new ConcurrentHashMap<>();
+
+    /**
+     * Secret relays sign their registration with, null if relays are not
+     * accepted.
+     */
+    private static String relaySecret = null;
+
+    /**
+     * Spreads the boards over the registered relays.
+     */
+    private static HashRing relayRing = new HashRing(new ArrayList<>());
+
+    /**
+     * Session id recorded in the catalog for boards loaded from disk, whose
+     * sharing client has not reconnected.
+     */
+    private static final String restoredSession = "restored";
+
+    /**
+     * Time a board loaded from disk waits for its peer to share it again
+     * before it is dropped, in milliseconds.
+     */
+    private static final long restoredGrace = 60000;
+
+    /**
+     * Persistent copy of this server's shard of the catalog.
+     */
+    private static CatalogStore catalogStore;
+
+    /**
+     * Boards loaded from disk that no session has shared again yet. They are
+     * not advertised, and are dropped after {@link #restoredGrace} unless
+     * their peer shares them again, which attaches them to its session.
+     */
+    private static Set<String> restored = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Detects clients that have died without their connection closing.
+     */
+    private static HeartbeatMonitor heartbeats = new HeartbeatMonitor();
+
+    /**
+     * Time to wait for clients to offer to host a board whose sharing client
+     * has gone, in milliseconds.
+     */
+    private static final long failoverWindow = 1000;
+
+    /**
+     * The best offer so far to host a board whose sharing client has gone.
+     */
+    private static final class Failover {
+
+        final String sessionId;
+        long version = -1;
+        String hostPort = null;
+
+        Failover(String sessionId) {
+            this.sessionId = sessionId;
+        }
+    }
+
+    /**
+     * A challenge sent to a session claiming to be a cluster member or a
+     * relay, see {@link ClusterNode#clusterChallenge} and
+     * {@link #relayChallenge}.
+     */
+    private static final class Challenge {
+
+        /**
+         * The event the answer must come with.
+         */
+        final String proofEvent;
+        /**
+         * host:port the session claimed to be.
+         */
+        final String claim;
+        final String nonce = ClusterNode.nonce();
+
+        Challenge(String proofEvent, String claim) {
+            this.proofEvent = proofEvent;
+            this.claim = claim;
+        }
+    }
+
+    /**
+     * The challenge each session has been sent, by endpoint id. A session is
+     * only ever sent one.
+     */
+    private static Map<String, Challenge> challenges = new ConcurrentHashMap<>();
+
+    /**
+     * Boards of this server's shard waiting for a new host, see
+     * {@link #ownerLost}.
+     */
+    private static Map<String, Failover> failovers = new ConcurrentHashMap<>();
+
+    /**
+     * host:port registered by each client session, by endpoint id, see
+     * {@link #peerAddress}.
+     */
+    private static Map<String, String> peerAddresses = new ConcurrentHashMap<>();
+
+    /**
+     * Endpoint id of the session each registered host:port belongs to.
+     */
+    private static Map<String, String> addressOwners = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the session event handlers off the IO threads, in order for each
+     * session. The number of threads is set by the system property
+     * pb.handlerThreads, 0 to run handlers on the IO threads.
+     */
+    private static KeyedExecutor handlers = new KeyedExecutor(
+            Integer.getInteger("pb.handlerThreads", KeyedExecutor.defaultThreads));
+
+    /**
+     * Most client sessions admitted at once, further sessions are refused.
+     */
+    private static int maxSessions = 1000;
+
+    /**
+     * Time a refused session is kept open so the error reaches the client,
+     * in milliseconds.
+     */
+    private static final long refusalLinger = 1000;
+
+    /**
+     * Number of sessions holding an admission, see {@link #admit}.
+     */
+    private static AtomicInteger admitted = new AtomicInteger();
+
+    /**
+     * Endpoint ids of the sessions holding an admission.
+     */
+    private static Set<String> admittedSessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Most boards a single client may share at once.
+     */
+    private static int maxBoardsPerPeer = 100;
+
+    /**
+     * Share and unshare events each client may send per second, and in a
+     * burst.
+     */
+    private static double eventRate = 20;
+    private static double eventBurst = 40;
+
+    /**
+     * Rate limit of each admitted client session, by endpoint id.
+     */
+    private static Map<String, TokenBucket> rateLimits = new ConcurrentHashMap<>();
+
+    /**
+     * Failover offers each admitted client session may still make, by
+     * endpoint id: one for every board announced lost to it, see
+     * {@link #holdingBoard}. They are not taken from the session's rate
+     * limit, since a client holding many boards answers a host's failure
+     * with an offer for each at once.
+     */
+    private static Map<String, AtomicInteger> offerCredits = new ConcurrentHashMap<>();
+
+    /**
+     * Boards shared by each admitted client session, by endpoint id. Only
+     * touched on the session's handler queue.
+     */
+    private static Map<String, Set<String>> boardsBySession = new ConcurrentHashMap<>();
+
+    private static ClusterNode cluster;
+
+    private static Metrics metrics = Metrics.getInstance();
+
+    /**
+     * Emit an event to a client, counting it in the metrics.
+     */
+    private static void emit(Endpoint endpoint, String eventName, String arg) {
+        metrics.increment("events.out." + eventName);
+        metrics.add("endpoint." + endpoint.getOtherEndpointId() + ".bytes.out", encodedLength(eventName, arg));
+        endpoint.emit(eventName, arg);
+    }
+
+    /**
+     * Count an event received from a client in the metrics.
+     */
+    private static void received(Endpoint endpoint, String eventName, String arg) {
+        metrics.increment("events.in." + eventName);
+        metrics.add("endpoint." + endpoint.getOtherEndpointId() + ".bytes.in", encodedLength(eventName, arg));
+    }
+
+    /**
+     * @return bytes of the event name and argument as encoded on the wire,
+     * UTF-8, not counting the endpoint's own message framing
+     */
+    private static int encodedLength(String eventName, String arg) {
+        return eventName.getBytes(StandardCharsets.UTF_8).length
+                + (arg == null ? 0 : arg.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    /**
+     * @param relay host:port named by the {@link #relayAvailable}
+     * @param nonce the {@link #relayChallenge} sent to the relay
+     * @param proof argument of the {@link #relayProof} in answer
+     * @return true if the relay signed its host:port and the challenge with
+     * the relay secret
+     */
+    private static boolean verifyRelay(String relay, String nonce, String proof) {
+        if (relaySecret == null) {
+            return false;
+        }
+        byte[] expected = ClusterNode.sign(relaySecret, relayProof + "%" + relay + "%" + nonce)
+                .getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, proof.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send a session a challenge to prove it is what it claims to be, unless
+     * it has been sent one already.
+     *
+     * @return false if the session had been sent a challenge before
+     */
+    private static boolean challenge(Endpoint endpoint, String challengeEvent, String proofEvent, String claim) {
+        Challenge challenge = new Challenge(proofEvent, claim);
+        if (challenges.putIfAbsent(endpoint.getOtherEndpointId(), challenge) != null) {
+            return false;
+        }
+        emit(endpoint, challengeEvent, challenge.nonce);
+        return true;
+    }
+
+    /**
+     * @param proofEvent the event the proof came with
+     * @return the claim the session proved, or null if it was not challenged
+     * for this event or the proof does not match
+     */
+    private static String proven(Endpoint endpoint, String proofEvent, String proof) {
+        Challenge challenge = challenges.get(endpoint.getOtherEndpointId());
+        if (challenge == null || !challenge.proofEvent.equals(proofEvent)) {
+            return null;
+        }
+        boolean valid = proofEvent.equals(relayProof)
+                ? verifyRelay(challenge.claim, challenge.nonce, proof)
+                : cluster.verifyProof(challenge.claim, challenge.nonce, proof);
+        return valid ? challenge.claim : null;
+    }
+
+    /**
+     * Refuse a session that failed to prove it is a cluster member or a
+     * relay, closing it once the error has had time to get through.
+     */
+    private static void refuse(Endpoint endpoint, String metric, String event, String reason) {
+        metrics.increment(metric);
+        events.warning(event, () -> endpoint.getOtherEndpointId());
+        emit(endpoint, error, reason);
+        TimerWheel.getShared().schedule(endpoint::close, refusalLinger);
+    }
+
+    /**
+     * Tell a client that a board is being shared, preceded by the relay that
+     * serves it if there is one.
+     */
+    private static void emitSharing(Endpoint endpoint, String boardName) {
+        String relay = relayRing.nodeFor(boardName);
+        if (relay != null) {
+            emit(endpoint, relayingBoard, relay + "%" + boardName);
+        }
+        emit(endpoint, sharingBoard, boardName);
+    }
+
+    /**
+     * Send a share, unshare or peer gone event to the member owning the
+     * board, which may be this server.
+     */
+    private static void route(String eventName, String sessionId, String boardName) {
+        String owner = cluster.ownerOf(WhiteboardApp.getBoardName(boardName));
+        // the owner's link may have dropped since, then its shard is ours
+        if (owner.equals(cluster.getSelf()) || !cluster.sendTo(owner, eventName, sessionId + "%" + boardName)) {
+            onCatalogEvent(eventName, sessionId, boardName);
+        }
+    }
+
+    /**
+     * Hand the boards held while their owner was unreachable back to it.
+     */
+    private static void rebalance() {
+        for (Map.Entry<String, String> entry : catalog.entrySet()) {
+            String boardName = entry.getKey();
+            String owner = cluster.ownerOf(WhiteboardApp.getBoardName(boardName));
+            if (!owner.equals(cluster.getSelf())
+                    && cluster.sendTo(owner, ClusterNode.forwardShareBoard, entry.getValue() + "%" + boardName)
+                    && catalog.remove(boardName, entry.getValue())) {
+                catalogStore.unshared(boardName);
+                log.info("Handed " + boardName + " back to " + owner);
+            }
+        }
+    }
+
+    /**
+     * Apply a share, unshare or peer gone event to this server's shard of the
+     * catalog and announce it to all clients in the cluster.
+     */
+    private static void onCatalogEvent(String eventName, String sessionId, String boardName) {
+        restored.remove(boardName);
+        if (eventName.equals(ClusterNode.forwardShareBoard)) {
+            catalog.put(boardName, sessionId);
+            catalogStore.shared(boardName);
+            announce(sharingBoard, sessionId, boardName);
+        } else if (eventName.equals(ClusterNode.forwardUnshareBoard)) {
+            catalog.remove(boardName);
+            catalogStore.unshared(boardName);
+            announce(unsharingBoard, sessionId, boardName);
+        } else if (eventName.equals(ClusterNode.forwardPeerGone)) {
+            catalog.remove(boardName);
+            catalogStore.unshared(boardName);
+            startFailover(sessionId, boardName);
+        } else if (eventName.equals(ClusterNode.forwardHoldingBoard)) {
+            offerFailover(boardName);
+        }
+    }
+
+    /**
+     * Ask every client whether it holds a copy of a board whose sharing
+     * client has gone, and hand the board over to the one with the latest
+     * version when the offers are in.
+     */
+    private static void startFailover(String sessionId, String boardName) {
+        failovers.put(boardName, new Failover(sessionId));
+        announce(ownerLost, sessionId, boardName);
+        TimerWheel.getShared().schedule(() -> finishFailover(boardName), failoverWindow);
+    }
+
+    /**
+     * @param offer host:port:boardid%version%clienthost:clientport, the
+     * client's host and port being the ones its session registered
+     */
+    private static void offerFailover(String offer) {
+        String[] parts = offer.split("%");
+        Failover failover = parts.length < 3 ? null : failovers.get(parts[0]);
+        if (failover == null) {
+            return;
+        }
+        long version;
+        try {
+            version = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            events.warning("badOffer", () -> offer);
+            return;
+        }
+        synchronized (failover) {
+            // ties go to the lowest host:port, so the choice does not depend on arrival order
+            if (version > failover.version || (version == failover.version
+                    && (failover.hostPort == null || parts[2].compareTo(failover.hostPort) < 0))) {
+                failover.version = version;
+                failover.hostPort = parts[2];
+            }
+        }
+    }
+
+    private static void finishFailover(String boardName) {
+        Failover failover = failovers.remove(boardName);
+        if (failover == null) {
+            return;
+        }
+        synchronized (failover) {
+            if (failover.hostPort == null) {
+                events.info("failoverNone", () -> boardName);
+                announce(disconnectPeer, failover.sessionId, boardName);
+                return;
+            }
+            String newName = failover.hostPort + ":" + WhiteboardApp.getBoardIdAndData(boardName);
+            events.info("failover", () -> boardName + " -> " + newName + " at version " + failover.version);
+            metrics.increment("boards.failover");
+            // the new host shares the board under its new name when it hears this
+            announce(boardMoved, failover.sessionId, boardName + "%" + newName + "%" + failover.version);
+        }
+    }
+
+    /**
+     * Tell a client, possibly through another member, about every board in
+     * this server's shard. Boards loaded from disk are left out until their
+     * peer shares them again.
+     *
+     * @param endpoint the client, or null to send via the member
+     * @param member "host:port" of the member the client is connected to
+     * @param sessionId the client's endpoint id
+     */
+    private static void advertiseCatalog(Endpoint endpoint, String member, String sessionId) {
+        for (String key : catalog.keySet()) {
+            if (restored.contains(key)) {
+                continue;
+            }
+            if (endpoint != null) {
+                emitSharing(endpoint, key);
+            } else {
+                cluster.sendTo(member, ClusterNode.boardListEntry, sessionId + "%" + key);
+            }
+        }
+    }
+
+    /**
+     * Drop a board loaded from disk that its peer has not shared again.
+     */
+    private static void expireRestored(String boardName) {
+        // the board may have been shared again or removed in the meantime
+        if (restored.remove(boardName) && catalog.remove(boardName, restoredSession)) {
+            events.info("expired", () -> boardName);
+            catalogStore.unshared(boardName);
+        }
+    }
+
+    private static void announce(String eventName, String sessionId, String boardName) {
+        cluster.broadcast(ClusterNode.announce, eventName + "%" + sessionId + "%" + boardName);
+        announceLocally(eventName, sessionId, boardName);
+    }
+
+    /**
+     * Emit an event to every client of this server except the given session.
+     */
+    private static void announceLocally(String eventName, String sessionId, String boardName) {
+        long start = System.nanoTime();
+        for (Map.Entry<String, Endpoint> entry : peerInformation.entrySet()) {
+            if (entry.getKey().equals(sessionId)) {
+                continue;
+            }
+            if (eventName.equals(sharingBoard)) {
+                emitSharing(entry.getValue(), boardName);
+            } else {
+                if (eventName.equals(ownerLost)) {
+                    AtomicInteger credits = offerCredits.get(entry.getKey());
+                    if (credits != null) {
+                        credits.incrementAndGet();
+                    }
+                }
+                emit(entry.getValue(), eventName, boardName);
+            }
+        }
+        metrics.histogram("broadcast.fanout").recordSince(start);
+    }
+
+    /**
+     * Register the host:port a client session's peer listens on, see
+     * {@link #peerAddress}.
+     *
+     * @param sessionId
+     * @param address host:port
+     * @return null if registered, or already registered for the session,
+     * otherwise why not
+     */
+    private static String registerAddress(String sessionId, String address) {
+        try {
+            WhiteboardApp.getPort(address);
+        } catch (NumberFormatException e) {
+            return "bad peer address: " + address;
+        }
+        if (address.indexOf(':') <= 0 || address.indexOf(':') != address.lastIndexOf(':')) {
+            return "bad peer address: " + address;
+        }
+        String registered = peerAddresses.get(sessionId);
+        if (registered != null) {
+            return registered.equals(address) ? null : "peer address already registered as " + registered;
+        }
+        String owner = addressOwners.putIfAbsent(address, sessionId);
+        if (owner != null && !owner.equals(sessionId)) {
+            return "peer address registered by another session: " + address;
+        }
+        peerAddresses.put(sessionId, address);
+        return null;
+    }
+
+    /**
+     * @return a callback running the handler on the session's handler queue
+     */
+    private static EventCallback onSession(Endpoint endpoint, EventCallback callback) {
+        return handlers.dispatch((args) -> endpoint.getOtherEndpointId(), callback);
+    }
+
+    /**
+     * @return a callback that refuses the event with an {@link #error} if
+     * the session is over its rate limit or is no longer an admitted client
+     * session, and otherwise runs the handler on the session's handler queue
+     */
+    private static EventCallback limited(Endpoint endpoint, String eventName, EventCallback callback) {
+        EventCallback queued = onSession(endpoint, callback);
+        return (args) -> {
+            // refused events were still received
+            received(endpoint, eventName, (String) args[0]);
+            TokenBucket bucket = rateLimits.get(endpoint.getOtherEndpointId());
+            if (bucket == null || !bucket.tryAcquire()) {
+                metrics.increment("admission.rejected.rate");
+                emit(endpoint, error, "rate limit exceeded, " + eventName + " ignored: " + args[0]);
+                return;
+            }
+            queued.callback(args);
+        };
+    }
+
+    /**
+     * @return a callback that refuses a failover offer with an {@link #error}
+     * if the session has no offers left, see {@link #offerCredits}, and
+     * otherwise runs the handler on the session's handler queue
+     */
+    private static EventCallback offered(Endpoint endpoint, EventCallback callback) {
+        EventCallback queued = onSession(endpoint, callback);
+        return (args) -> {
+            received(endpoint, holdingBoard, (String) args[0]);
+            AtomicInteger credits = offerCredits.get(endpoint.getOtherEndpointId());
+            if (credits == null || credits.getAndUpdate((c) -> c > 0 ? c - 1 : c) <= 0) {
+                metrics.increment("admission.rejected.offers");
+                emit(endpoint, error, "no board lost that could be offered, " + holdingBoard + " ignored: " + args[0]);
+                return;
+            }
+            queued.callback(args);
+        };
+    }
+
+    /**
+     * Take one of the {@link #maxSessions} admissions for a session. The
+     * check and the reservation are one atomic step, so sessions starting
+     * at the same time on different IO threads can't go over the limit.
+     *
+     * @return false if the server is full
+     */
+    private static boolean admit(Endpoint endpoint) {
+        while (true) {
+            int count = admitted.get();
+            if (count >= maxSessions) {
+                return false;
+            }
+            if (admitted.compareAndSet(count, count + 1)) {
+                admittedSessions.add(endpoint.getOtherEndpointId());
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Forget a session that has stopped or has been declared failed, and
+     * announce that the boards it shared are gone. Calling it again for the
+     * same session does nothing more.
+     */
+    private static void sessionGone(Endpoint endpoint) {
+        if (admittedSessions.remove(endpoint.getOtherEndpointId())) {
+            admitted.decrementAndGet();
+        }
+        peerInformation.remove(endpoint.getOtherEndpointId());
+        rateLimits.remove(endpoint.getOtherEndpointId());
+        offerCredits.remove(endpoint.getOtherEndpointId());
+        challenges.remove(endpoint.getOtherEndpointId());
+        boardsBySession.remove(endpoint.getOtherEndpointId());
+        String address = peerAddresses.remove(endpoint.getOtherEndpointId());
+        if (address != null) {
+            addressOwners.remove(address, endpoint.getOtherEndpointId());
+        }
+        String relay = relays.remove(endpoint.getOtherEndpointId());
+        if (relay != null) {
+            relayRing.remove(relay);
+            log.info("Relay gone: " + relay);
+        }
+        metrics.remove("endpoint." + endpoint.getOtherEndpointId() + ".");
+
+        List<String> deletedBoards = new ArrayList<>();
+        for (String key : sharedBoards.keySet()) {
+            if (endpoint == sharedBoards.get(key)) {
+                deletedBoards.add(key);
+            }
+        }
+
+        for (String key : deletedBoards) {
+            if (sharedBoards.remove(key, endpoint)) {
+                route(ClusterNode.forwardPeerGone, endpoint.getOtherEndpointId(), key);
+            }
+        }
+    }
+
+    /**
+     * Handle events arriving on a link from another member of the cluster.
+     */
+    private static void onClusterLink(Endpoint link) {
+        for (String eventName : new String[]{ClusterNode.forwardShareBoard,
+            ClusterNode.forwardUnshareBoard, ClusterNode.forwardPeerGone,
+            ClusterNode.forwardHoldingBoard}) {
+            link.on(eventName, (eventArgs) -> {
+                String[] parts = ((String) eventArgs[0]).split("%", 2);
+                onCatalogEvent(eventName, parts[0], parts[1]);
+            });
+        }
+        link.on(ClusterNode.announce, (eventArgs) -> {
+            String[] parts = ((String) eventArgs[0]).split("%", 3);
+            announceLocally(parts[0], parts[1], parts[2]);
+        }).on(ClusterNode.listBoards, (eventArgs) -> {
+            String[] parts = ((String) eventArgs[0]).split("%", 2);
+            advertiseCatalog(null, parts[0], parts[1]);
+        }).on(ClusterNode.boardListEntry, (eventArgs) -> {
+            String[] parts = ((String) eventArgs[0]).split("%", 2);
+            Endpoint endpoint = peerInformation.get(parts[0]);
+            if (endpoint != null) {
+                emitSharing(endpoint, parts[1]);
+            }
+        });
+    }
+
     private static void help(Options options) {
         String header = "PB Whiteboard Server for Unimelb COMP90015\n\n";
         String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
@@ -110,6 +837,16 @@ public class WhiteboardServer {
         Options options = new Options();
         options.addOption("port", true, "server port, an integer");
         options.addOption("password", true, "password for server");
+        options.addOption("node", true, "host:port of this server as listed in -cluster");
+        options.addOption("cluster", true, "comma separated host:port of every server in the cluster");
+        options.addOption("clusterSecret", true, "secret shared by every server in the cluster");
+        options.addOption("relaySecret", true, "secret relays register with, relays are refused without it");
+        options.addOption("metrics", true, "seconds between metrics dumps to the log, 0 for none");
+        options.addOption("catalog", true, "file name prefix of the persisted catalog");
+        options.addOption("maxSessions", true, "most client sessions at once, an integer");
+        options.addOption("maxBoards", true, "most boards a client may share at once, an integer");
+        options.addOption("eventRate", true, "share/unshare events per second allowed per client");
+        options.addOption("eventBurst", true, "share/unshare events allowed per client in a burst");
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -128,6 +865,24 @@ public class WhiteboardServer {
             }
         }
 
+        try {
+            if (cmd.hasOption("maxSessions")) {
+                maxSessions = Integer.parseInt(cmd.getOptionValue("maxSessions"));
+            }
+            if (cmd.hasOption("maxBoards")) {
+                maxBoardsPerPeer = Integer.parseInt(cmd.getOptionValue("maxBoards"));
+            }
+            if (cmd.hasOption("eventRate")) {
+                eventRate = Double.parseDouble(cmd.getOptionValue("eventRate"));
+            }
+            if (cmd.hasOption("eventBurst")) {
+                eventBurst = Double.parseDouble(cmd.getOptionValue("eventBurst"));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("-maxSessions, -maxBoards, -eventRate and -eventBurst require numbers");
+            help(options);
+        }
+
         // create a server manager and setup event handlers
         ServerManager serverManager;
 
@@ -140,87 +895,211 @@ public class WhiteboardServer {
         /**
          * TODO: Put some server related code here.
          */
-        // start up the server
-        Map<String, Endpoint>  peerInformation = new HashMap<>();
-        Map<String, Endpoint>  sharedBoards = new HashMap<>();
-        Map<String, Endpoint>  deletedBoard = new HashMap<>();
+        // join the cluster, a server without -cluster is a cluster of one
+        String self = cmd.hasOption("node") ? cmd.getOptionValue("node") : "localhost:" + port;
+        List<String> members = new ArrayList<>();
+        if (cmd.hasOption("cluster")) {
+            for (String member : cmd.getOptionValue("cluster").split(",")) {
+                members.add(member.trim());
+            }
+        }
+        // the peer manager is only used to open links to the other members, it is never started
+        try {
+            cluster = new ClusterNode(self, members, new PeerManager(port), cmd.getOptionValue("clusterSecret"));
+        } catch (IllegalArgumentException e) {
+            // a member that is not host:port, or other members without -clusterSecret
+            System.out.println("-cluster: " + e.getMessage());
+            help(options);
+        }
+        relaySecret = cmd.getOptionValue("relaySecret");
+        cluster.onMembershipChange(() -> handlers.execute(cluster.getSelf(), WhiteboardServer::rebalance));
 
+        // reload the boards shared before a restart, they are checked before being advertised
+        String catalogPrefix = cmd.hasOption("catalog") ? cmd.getOptionValue("catalog") : "whiteboard-catalog-" + port;
+        catalogStore = new CatalogStore(Paths.get(catalogPrefix + ".snapshot"), Paths.get(catalogPrefix + ".journal"));
+        try {
+            for (String boardName : catalogStore.load()) {
+                if (cluster.getSelf().equals(cluster.homeOf(boardName))) {
+                    catalog.put(boardName, restoredSession);
+                    restored.add(boardName);
+                    TimerWheel.getShared().schedule(() -> expireRestored(boardName), restoredGrace);
+                } else {
+                    catalogStore.unshared(boardName);
+                }
+            }
+            log.info("Loaded " + catalog.size() + " shared boards from " + catalogPrefix);
+        } catch (IOException e) {
+            log.warning("could not load catalog " + catalogPrefix + ": " + e.getMessage());
+        }
+
+        // metrics are always available through JMX, and optionally logged
+        metrics.gauge("sessions.active", () -> peerInformation.size());
+        metrics.gauge("boards.shared", () -> catalog.size());
+        metrics.gauge("relays.active", () -> relays.size());
+        metrics.gauge("admission.sessions.limit", () -> maxSessions);
+        metrics.gauge("admission.sessions.admitted", () -> admitted.get());
+        metrics.gauge("handlers.queued", () -> handlers.queued());
+        metrics.registerMBean("pb:type=Metrics,name=WhiteboardServer");
+        if (cmd.hasOption("metrics")) {
+            try {
+                long period = Long.parseLong(cmd.getOptionValue("metrics"));
+                if (period > 0) {
+                    metrics.startDump(period);
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("-metrics requires a number of seconds, parsed: " + cmd.getOptionValue("metrics"));
+                help(options);
+            }
+        }
 
+        // start up the server
         serverManager.on(ServerManager.sessionStarted, (eventArgs) -> {
             Endpoint endpoint = (Endpoint) eventArgs[0];
+            metrics.increment("sessions.started");
+            if (!admit(endpoint)) {
+                metrics.increment("admission.rejected.sessions");
+                events.warning("sessionRefused", () -> endpoint.getOtherEndpointId());
+                emit(endpoint, error, "server full, at most " + maxSessions + " sessions");
+                TimerWheel.getShared().schedule(endpoint::close, refusalLinger);
+                return;
+            }
+            metrics.increment("admission.accepted.sessions");
             peerInformation.put(endpoint.getOtherEndpointId(), endpoint);
+            rateLimits.put(endpoint.getOtherEndpointId(), new TokenBucket(eventRate, eventBurst));
+            offerCredits.put(endpoint.getOtherEndpointId(), new AtomicInteger());
+            // cluster members and relays identify themselves after starting, and hold an admission too
+            endpoint.on(ClusterNode.clusterHello, (eventArgs6) -> {
+                // not a client but another member of the cluster, if it can prove it
+                String member = (String) eventArgs6[0];
+                if (!cluster.isOtherMember(member) || !challenge(endpoint, ClusterNode.clusterChallenge,
+                        ClusterNode.clusterProof, member)) {
+                    refuse(endpoint, "admission.rejected.cluster", "helloRefused", "not a member of this cluster");
+                }
+            }).on(ClusterNode.clusterProof, (eventArgs6) -> {
+                if (proven(endpoint, ClusterNode.clusterProof, (String) eventArgs6[0]) == null) {
+                    refuse(endpoint, "admission.rejected.cluster", "helloRefused", "not a member of this cluster");
+                    return;
+                }
+                peerInformation.remove(endpoint.getOtherEndpointId());
+                rateLimits.remove(endpoint.getOtherEndpointId());
+                offerCredits.remove(endpoint.getOtherEndpointId());
+                log.info("Cluster member linked: " + endpoint.getOtherEndpointId());
+                onClusterLink(endpoint);
+            }).on(relayAvailable, (eventArgs7) -> {
+                // not a client but a relay, which is not told about boards, if it can prove it
+                if (relaySecret == null || !challenge(endpoint, relayChallenge, relayProof, (String) eventArgs7[0])) {
+                    refuse(endpoint, "admission.rejected.relays", "relayRefused", "not a relay of this server");
+                }
+            }).on(relayProof, (eventArgs7) -> {
+                String relay = proven(endpoint, relayProof, (String) eventArgs7[0]);
+                if (relay == null) {
+                    refuse(endpoint, "admission.rejected.relays", "relayRefused", "not a relay of this server");
+                    return;
+                }
+                peerInformation.remove(endpoint.getOtherEndpointId());
+                rateLimits.remove(endpoint.getOtherEndpointId());
+                offerCredits.remove(endpoint.getOtherEndpointId());
+                relays.put(endpoint.getOtherEndpointId(), relay);
+                relayRing.add(relay);
+                log.info("Relay registered: " + relay);
+            });
 
-            for (String key : sharedBoards.keySet()) {
-                endpoint.emit(sharingBoard, key);
-            }
+            advertiseCatalog(endpoint, cluster.getSelf(), endpoint.getOtherEndpointId());
+            // the rest of the catalog is held by the other members
+            cluster.broadcast(ClusterNode.listBoards, cluster.getSelf() + "%" + endpoint.getOtherEndpointId());
 
-            log.info("Client session started: " + endpoint.getOtherEndpointId());
-            endpoint.on(shareBoard, (eventArgs2) -> {
+            events.info("sessionStarted", () -> endpoint.getOtherEndpointId());
+            // don't wait for TCP to notice a dead client
+            heartbeats.watch(endpoint, () -> {
+                metrics.increment("sessions.failed");
+                handlers.execute(endpoint.getOtherEndpointId(), () -> sessionGone(endpoint));
+                // sessionStopped follows, and finds the session already gone
+                endpoint.close();
+            });
+            endpoint.on(shareBoard, limited(endpoint, shareBoard, (eventArgs2) -> {
                 String sharedBoardName = (String) eventArgs2[0];
+                Set<String> shared = boardsBySession.computeIfAbsent(endpoint.getOtherEndpointId(),
+                        (id) -> new HashSet<>());
+                if (!shared.contains(sharedBoardName) && shared.size() >= maxBoardsPerPeer) {
+                    metrics.increment("admission.rejected.boards");
+                    emit(endpoint, error, "at most " + maxBoardsPerPeer + " shared boards, not sharing: "
+                            + sharedBoardName);
+                    return;
+                }
+                shared.add(sharedBoardName);
                 sharedBoards.put(sharedBoardName, endpoint);
-
-                log.info("Received share request: " + sharedBoardName);
-
-                for (String key : peerInformation.keySet()) {
-                    if (!key.equals(endpoint.getOtherEndpointId())) {
-                        peerInformation.get(key).emit(sharingBoard, sharedBoardName);
-                    }
+                if (!peerAddresses.containsKey(endpoint.getOtherEndpointId())) {
+                    // a client that did not register, its boards are named after its address
+                    registerAddress(endpoint.getOtherEndpointId(), WhiteboardApp.getIP(sharedBoardName) + ":"
+                            + WhiteboardApp.getPort(sharedBoardName));
                 }
 
-            }).on(unshareBoard, (eventArgs4) -> {
+                events.info("shareBoard", () -> sharedBoardName);
+                route(ClusterNode.forwardShareBoard, endpoint.getOtherEndpointId(), sharedBoardName);
+
+            })).on(unshareBoard, limited(endpoint, unshareBoard, (eventArgs4) -> {
 
                 String unsharedBoardName = (String) eventArgs4[0];
-                log.info("received unshare request: " + unsharedBoardName);
+                events.info("unshareBoard", () -> unsharedBoardName);
+                Set<String> shared = boardsBySession.get(endpoint.getOtherEndpointId());
+                if (shared != null) {
+                    shared.remove(unsharedBoardName);
+                }
 
                 sharedBoards.remove(unsharedBoardName);
-
-                for (String key : peerInformation.keySet()) {
-                    if (!key.equals(endpoint.getOtherEndpointId())) {
-                        peerInformation.get(key).emit(unsharingBoard, unsharedBoardName);
-                    }
+                route(ClusterNode.forwardUnshareBoard, endpoint.getOtherEndpointId(), unsharedBoardName);
+            })).on(holdingBoard, offered(endpoint, (eventArgs8) -> {
+                String offer = (String) eventArgs8[0];
+                String[] parts = offer.split("%");
+                // the board goes to the session's own address, whatever the offer says
+                String address = peerAddresses.get(endpoint.getOtherEndpointId());
+                if (address == null || parts.length < 2) {
+                    metrics.increment("failover.rejected.offers");
+                    emit(endpoint, error, "no peer address registered, offer ignored: " + offer);
+                    return;
+                }
+                route(ClusterNode.forwardHoldingBoard, endpoint.getOtherEndpointId(),
+                        parts[0] + "%" + parts[1] + "%" + address);
+            })).on(peerAddress, limited(endpoint, peerAddress, (eventArgs9) -> {
+                String address = (String) eventArgs9[0];
+                String refused = registerAddress(endpoint.getOtherEndpointId(), address);
+                if (refused != null) {
+                    metrics.increment("admission.rejected.addresses");
+                    emit(endpoint, error, refused);
+                    return;
                 }
-            }).on(error, (eventArgs5) -> {
+                events.info("peerAddress", () -> endpoint.getOtherEndpointId() + " " + address);
+            })).on(error, (eventArgs5) -> {
                 Endpoint endpoint1 = (Endpoint) eventArgs5[0];
-                log.info("There is an error from: " + endpoint1.getOtherEndpointId());
+                events.info("error", () -> endpoint1.getOtherEndpointId());
             });
 
         }).on(ServerManager.sessionStopped, (eventArgs) -> {
             Endpoint endpoint = (Endpoint) eventArgs[0];
-            log.info("Client session ended: " + endpoint.getOtherEndpointId());
-
-
-
-            for (String key : sharedBoards.keySet()) {
-                if (endpoint == sharedBoards.get(key)) {
-                    deletedBoard.put(key, endpoint);
-
-                }
-            }
-
-            for (String key : deletedBoard.keySet()) {
-                sharedBoards.remove(key);
-
-                for (String key2 : peerInformation.keySet()) {
-                    if (!key2.equals(endpoint.getOtherEndpointId())) {
-                        peerInformation.get(key2).emit(disconnectPeer, key);
-                    }
-                }
-            }
-
+            events.info("sessionStopped", () -> endpoint.getOtherEndpointId());
+            heartbeats.unwatch(endpoint);
+            metrics.increment("sessions.stopped");
+            // after any of the session's events still queued
+            handlers.execute(endpoint.getOtherEndpointId(), () -> sessionGone(endpoint));
 
         }).on(ServerManager.sessionError, (eventArgs) -> {
             Endpoint endpoint = (Endpoint) eventArgs[0];
-            log.warning("Client session ended in error: " + endpoint.getOtherEndpointId());
+            events.warning("sessionError", () -> endpoint.getOtherEndpointId());
+            metrics.increment("sessions.error");
         }).on(IOThread.ioThread, (eventArgs) -> {
             String peerport = (String) eventArgs[0];
             // we don't need this info, but let's log it
             log.info("using Internet address: " + peerport);
         });
 
+        cluster.start();
         log.info("Whiteboard Server starting up");
         serverManager.start();
         // nothing more for the main thread to do
         serverManager.join();
+        cluster.shutdown();
+        catalogStore.close();
+        metrics.stopDump();
         Utils.getInstance().cleanUp();
 
     }